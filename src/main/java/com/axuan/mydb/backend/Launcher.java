@@ -1,8 +1,14 @@
 package com.axuan.mydb.backend;
 
+import com.axuan.mydb.backend.common.ReplacementPolicy;
 import com.axuan.mydb.backend.dm.DataManager;
+import com.axuan.mydb.backend.dm.DataManagerImpl;
+import com.axuan.mydb.backend.dm.pageCache.PageCacheOptions;
+import com.axuan.mydb.backend.replica.LogShipper;
+import com.axuan.mydb.backend.replica.Standby;
 import com.axuan.mydb.backend.server.Server;
 import com.axuan.mydb.backend.tbm.TableManager;
+import com.axuan.mydb.backend.tbm.impl.TableManagerImpl;
 import com.axuan.mydb.backend.tm.TransactionManager;
 import com.axuan.mydb.backend.tm.impl.TransactionManagerImpl;
 import com.axuan.mydb.backend.utils.Panic;
@@ -32,35 +38,97 @@ public class Launcher {
     options.addOption("open", true, "-open DBPath");
     options.addOption("create", true, "-create DBPath");
     options.addOption("mem", true, "-mem 64MB");
+    options.addOption("evict", true, "-evict clock|2q");
+    options.addOption("mmap", false, "-mmap");
+    options.addOption("offheap", true, "-offheap 4GB");
+    options.addOption("pageSize", true, "-pageSize 8KB");
+    options.addOption("compress", false, "-compress");
+    options.addOption("port", true, "-port 9999");
+    options.addOption("ship", true, "-ship 9998");
+    options.addOption("standby", true, "-standby DBPath");
+    options.addOption("primary", true, "-primary host:9998");
+    options.addOption("asyncDelay", true, "-asyncDelay 200");
     CommandLineParser parser = new DefaultParser();
     CommandLine cmd = parser.parse(options, args);
 
-    if (cmd.hasOption("open")) {
-      openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+    int serverPort = cmd.hasOption("port") ? Integer.parseInt(cmd.getOptionValue("port")) : port;
+    if (cmd.hasOption("open") || cmd.hasOption("standby")) {
+      PageCacheOptions pcOptions = PageCacheOptions.newOptions(parseMem(cmd.getOptionValue("mem")));
+      pcOptions.policy = cmd.getOptionValue("evict", ReplacementPolicy.CLOCK);
+      pcOptions.mmap = cmd.hasOption("mmap");
+      if (cmd.hasOption("offheap")) {
+        pcOptions.offHeap = parseMem(cmd.getOptionValue("offheap"));
+      }
+      if (cmd.hasOption("standby")) {
+        openStandby(cmd.getOptionValue("standby"), pcOptions, cmd.getOptionValue("primary"), serverPort);
+        return;
+      }
+      int shipPort = cmd.hasOption("ship") ? Integer.parseInt(cmd.getOptionValue("ship")) : 0;
+      long asyncDelay = cmd.hasOption("asyncDelay") ? Long.parseLong(cmd.getOptionValue("asyncDelay"))
+          : DataManager.ASYNC_COMMIT_DELAY;
+      openDB(cmd.getOptionValue("open"), pcOptions, asyncDelay, serverPort, shipPort);
       return;
     }
     if (cmd.hasOption("create")) {
-      createDB(cmd.getOptionValue("create"));
+      PageCacheOptions pcOptions = PageCacheOptions.newOptions(DEFAULT_MEM);
+      if (cmd.hasOption("pageSize")) {
+        pcOptions.pageSize = (int)parseMem(cmd.getOptionValue("pageSize"));
+      }
+      pcOptions.compress = cmd.hasOption("compress");
+      createDB(cmd.getOptionValue("create"), pcOptions);
       return;
     }
-    System.out.println("Usage: Launcher (open|create) DBPath");
+    System.out.println("Usage: Launcher (open|create|standby) DBPath");
   }
 
-  private static void createDB(String path) {
+  private static void createDB(String path, PageCacheOptions pcOptions) {
     TransactionManagerImpl tm = TransactionManager.create(path);
-    DataManager dm = DataManager.create(path, DEFAULT_MEM, tm);
+    DataManager dm = DataManager.create(path, pcOptions, tm);
     VersionManagerImpl vm = new VersionManagerImpl(tm, dm);
     TableManager.create(path, vm, dm);
     tm.close();
     dm.close();
   }
 
-  private static void openDB(String path, long mem) {
-    TransactionManager tm = TransactionManager.open(path);
-    DataManager dm = DataManager.open(path, mem, tm);
+  /**
+   * 打开数据库，shipPort不为0时在该端口向备库发送日志
+   * asyncDelay是异步提交的事务最迟多少毫秒之后落盘
+   */
+  private static void openDB(String path, PageCacheOptions pcOptions, long asyncDelay, int serverPort,
+                             int shipPort) {
+    TransactionManagerImpl tm = TransactionManager.open(path);
+    DataManager dm = DataManager.open(path, pcOptions, tm, asyncDelay);
+    if (shipPort == 0) {
+      VersionManager vm = new VersionManagerImpl(tm, dm);
+      TableManager tbm = TableManager.open(path, vm, dm);
+      new Server(serverPort, tbm).start();
+      return;
+    }
+    LogShipper shipper = new LogShipper(shipPort, tm, ((DataManagerImpl)dm).getLogger());
+    VersionManager vm = new VersionManagerImpl(shipper.wrap(tm), dm);
+    TableManagerImpl tbm = (TableManagerImpl)TableManager.open(path, vm, dm);
+    shipper.setTableManager(tbm);
+    shipper.start();
+    new Server(serverPort, tbm).start();
+  }
+
+  /**
+   * 以备库打开主库正常关闭后拷贝出的数据库，从primary接收日志，只提供读取
+   */
+  private static void openStandby(String path, PageCacheOptions pcOptions, String primary, int serverPort) {
+    if (primary == null || primary.indexOf(':') < 0) {
+      System.out.println("Usage: Launcher standby DBPath -primary host:port");
+      return;
+    }
+    TransactionManagerImpl tm = TransactionManager.open(path);
+    DataManagerImpl dm = DataManager.openStandby(path, pcOptions, tm);
     VersionManager vm = new VersionManagerImpl(tm, dm);
-    TableManager tbm = TableManager.open(path, vm, dm);
-    new Server(port, tbm).start();
+    TableManagerImpl tbm = (TableManagerImpl)TableManager.open(path, vm, dm);
+    int i = primary.lastIndexOf(':');
+    Standby standby = new Standby(primary.substring(0, i), Integer.parseInt(primary.substring(i + 1)), tm, dm, tbm,
+        Standby.MAX_LAG_MS);
+    standby.start();
+    new Server(serverPort, tbm, standby).start();
   }
 
   private static long parseMem(String memStr) {
@@ -1,69 +1,117 @@
 package com.axuan.mydb.backend.common;
 
 import com.axuan.mydb.common.Error;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
+ * 按key分为若干段(Segment)，每段独立加锁，不同段上的请求互不阻塞
+ * 同一个key的并发未命中，只会有一个线程去数据源获取，其余线程等待同一个future
+ * 没有设置置换策略时，资源的引用归零即被驱逐；设置了置换策略时，引用归零的资源仍留在缓存中，
+ * 直到缓存满时由置换策略选出并驱逐
  * @author axuan
  */
 public abstract class AbstractCache<T> {
 
-  private HashMap<Long, T> cache; // 实际缓存的数据
+  private static final int SEGMENT_NO = 16; // 段的数量，必须是2的幂
 
-  private HashMap<Long, Integer> references; // 元素的引用个数
+  private Segment<T>[] segments;
 
-  private HashMap<Long, Boolean> getting; // 是否正在从数据库获取某资源
+  private int maxResources; // 缓存的最大缓存资源数
 
+  private AtomicInteger count; // 缓存中元素的个数(包括正在获取中的)
 
-  private int maxResources; // 缓存的最大缓存资源数
+  private ReplacementPolicy policy; // 置换策略，为null时引用归零即驱逐
+
+  private static final long EVICT_WAIT_MS = 1000; // 所有资源都被引用时，等待资源释放的最长时间
 
-  private int count = 0; // 缓存中元素的个数
+  private static final long EVICT_RETRY_MS = 10; // 等待期间重新尝试驱逐的间隔
+
+  private Lock unpinLock;
+  private Condition unpinned; // 有资源的引用归零时通知
+  private AtomicInteger unpinWaiters; // 正在等待资源释放的线程数
+
+  static class Segment<T> {
+    HashMap<Long, T> cache = new HashMap<>(); // 实际缓存的数据
+    HashMap<Long, Integer> references = new HashMap<>(); // 元素的引用个数
+    HashMap<Long, CompletableFuture<T>> getting = new HashMap<>(); // 正在从数据源获取的资源
+    Lock lock = new ReentrantLock();
+  }
 
-  private Lock lock;
+  static class Evicted<T> {
+    T obj;
+    CompletableFuture<T> future;
+  }
 
   public AbstractCache(int maxResources) {
-    this.cache = new HashMap<>();
-    this.references = new HashMap<>();
-    this.getting = new HashMap<>();
+    this(maxResources, null);
+  }
+
+  @SuppressWarnings("unchecked")
+  public AbstractCache(int maxResources, ReplacementPolicy policy) {
+    this.segments = new Segment[SEGMENT_NO];
+    for (int i = 0; i < SEGMENT_NO; i++) {
+      segments[i] = new Segment<>();
+    }
     this.maxResources = maxResources;
-    this.lock = new ReentrantLock();
+    this.count = new AtomicInteger(0);
+    this.policy = policy;
+    this.unpinLock = new ReentrantLock();
+    this.unpinned = unpinLock.newCondition();
+    this.unpinWaiters = new AtomicInteger(0);
+  }
+
+  private Segment<T> segmentFor(long key) {
+    int h = (int)(key ^ (key >>> 32));
+    h ^= (h >>> 16);
+    return segments[h & (SEGMENT_NO - 1)];
   }
 
   protected T get(long key) throws Exception {
+    Segment<T> seg = segmentFor(key);
+    CompletableFuture<T> future;
     while (true) {
-      lock.lock();
-      if (getting.containsKey(key)) {
-        // 请求的资源正在被其他线程获取
-        lock.unlock();
-        try {
-          Thread.sleep(1);
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-          continue;
+      seg.lock.lock();
+      T obj = seg.cache.get(key);
+      if (obj != null) {
+        // 资源在缓存中，直接返回
+        seg.references.put(key, seg.references.get(key) + 1);
+        seg.lock.unlock();
+        if (policy != null) {
+          policy.access(key);
         }
-        continue;
+        return obj;
       }
 
-      if (cache.containsKey(key)) {
-        // 资源在缓存中，直接返回
-        T obj = cache.get(key);
-        references.put(key, references.get(key) + 1);
-        lock.unlock();
-        return obj;
+      CompletableFuture<T> loading = seg.getting.get(key);
+      if (loading != null) {
+        // 请求的资源正在被其他线程获取，等待其完成后重新检查
+        seg.lock.unlock();
+        awaitLoading(loading);
+        continue;
       }
 
       // 尝试获取该资源
-      if (maxResources > 0 && count == maxResources) {
-        lock.unlock();
-        throw Error.CacheFullException;
+      if (!tryAcquireSlot()) {
+        seg.lock.unlock();
+        if (policy == null || !evict()) {
+          throw Error.CacheFullException;
+        }
+        continue;
       }
-      count++;
-      getting.put(key, true);
-      lock.unlock();
+      future = new CompletableFuture<>();
+      seg.getting.put(key, future);
+      seg.lock.unlock();
       break;
     }
 
@@ -71,61 +119,231 @@ public abstract class AbstractCache<T> {
     try {
       obj = getForCache(key);
     } catch (Exception e) {
-      lock.lock();
-      count--;
-      getting.remove(key);
-      lock.unlock();
+      seg.lock.lock();
+      count.decrementAndGet();
+      seg.getting.remove(key);
+      seg.lock.unlock();
+      future.completeExceptionally(e);
       throw e;
     }
 
-    lock.lock();
-    getting.remove(key);
-    cache.put(key, obj);
-    references.put(key, 1);
-    lock.unlock();
+    seg.lock.lock();
+    seg.getting.remove(key);
+    seg.cache.put(key, obj);
+    seg.references.put(key, 1);
+    seg.lock.unlock();
+    future.complete(obj);
+    if (policy != null) {
+      policy.record(key);
+    }
 
     return obj;
   }
 
+  /**
+   * 由置换策略选出一个未被引用的资源，写回并移出缓存，腾出一个位置
+   * 驱逐期间该key被放入getting中，其他线程请求它时会等待写回完成后再重新从数据源获取
+   * @return 所有资源都被引用且等待超时时返回false
+   * @throws Exception
+   */
+  private boolean evict() throws Exception {
+    long deadline = System.currentTimeMillis() + EVICT_WAIT_MS;
+    while (true) {
+      Evicted<T> evicted = new Evicted<>();
+      long victim = policy.victim(key -> detach(key, evicted));
+      if (victim != -1) {
+        Segment<T> seg = segmentFor(victim);
+        try {
+          releaseForCache(evicted.obj);
+        } finally {
+          seg.lock.lock();
+          seg.getting.remove(victim);
+          seg.lock.unlock();
+          count.decrementAndGet();
+          evicted.future.complete(null);
+        }
+        return true;
+      }
+
+      // 所有资源都被引用着，等待有资源被释放
+      long remain = deadline - System.currentTimeMillis();
+      if (remain <= 0) {
+        return false;
+      }
+      unpinLock.lock();
+      try {
+        unpinWaiters.incrementAndGet();
+        unpinned.await(Math.min(remain, EVICT_RETRY_MS), TimeUnit.MILLISECONDS);
+      } finally {
+        unpinWaiters.decrementAndGet();
+        unpinLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * 若key当前没有被引用，将其从缓存中摘除
+   * @param key
+   * @param evicted 摘除成功时记录被摘除的资源和写回完成的future
+   * @return
+   */
+  private boolean detach(long key, Evicted<T> evicted) {
+    Segment<T> seg = segmentFor(key);
+    seg.lock.lock();
+    try {
+      Integer ref = seg.references.get(key);
+      if (ref == null || ref != 0) {
+        return false;
+      }
+      T obj = seg.cache.remove(key);
+      seg.references.remove(key);
+      CompletableFuture<T> future = new CompletableFuture<>();
+      seg.getting.put(key, future);
+      evicted.obj = obj;
+      evicted.future = future;
+      return true;
+    } finally {
+      seg.lock.unlock();
+    }
+  }
+
+  /**
+   * 等待其他线程的获取结果，获取失败时将异常抛给等待者
+   * @param loading
+   * @throws Exception
+   */
+  private void awaitLoading(CompletableFuture<T> loading) throws Exception {
+    try {
+      loading.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+
+  private boolean tryAcquireSlot() {
+    while (true) {
+      int c = count.get();
+      if (maxResources > 0 && c >= maxResources) {
+        return false;
+      }
+      if (count.compareAndSet(c, c + 1)) {
+        return true;
+      }
+    }
+  }
+
   /**
    * 强行释放一个缓存
    * @param key
    */
   protected void release(long key){
-    lock.lock();
+    Segment<T> seg = segmentFor(key);
+    seg.lock.lock();
     try {
-      int ref = references.get(key) - 1;
-      if (ref == 0) {
-        T obj = cache.get(key);
+      int ref = seg.references.get(key) - 1;
+      if (ref == 0 && policy != null) {
+        // 留在缓存中，等待置换策略驱逐
+        seg.references.put(key, 0);
+        signalUnpinned();
+      } else if (ref == 0) {
+        T obj = seg.cache.get(key);
         releaseForCache(obj);
-        references.remove(key);
-        cache.remove(key);
-        count--;
+        seg.references.remove(key);
+        seg.cache.remove(key);
+        count.decrementAndGet();
       } else {
-        references.put(key, ref);
+        seg.references.put(key, ref);
       }
     } finally {
-      lock.unlock();
+      seg.lock.unlock();
     }
   }
 
 
+  private void signalUnpinned() {
+    if (unpinWaiters.get() == 0) {
+      return;
+    }
+    unpinLock.lock();
+    try {
+      unpinned.signalAll();
+    } finally {
+      unpinLock.unlock();
+    }
+  }
+
+  // pinIfUnpinned的返回值
+  protected static final int NOT_CACHED = 0; // 资源不在缓存中
+  protected static final int PINNED = 1;     // 资源正在被其他线程引用
+  protected static final int REJECTED = 2;   // action返回false
+  protected static final int ACQUIRED = 3;   // action返回true，资源已被引用
+
   /**
-   * 关闭缓存，写回所有资源
+   * 若资源在缓存中且没有被引用，持有资源所在段的锁执行action
+   * 执行期间其他线程无法获取该资源，因此可以安全地读取资源的完整状态
+   * action返回true时，资源会被引用一次，调用者用完后需要release
+   * @param key
+   * @param action
+   * @return NOT_CACHED, PINNED, REJECTED 或 ACQUIRED
    */
-  protected void close() {
-    lock.lock();
+  protected int pinIfUnpinned(long key, Predicate<T> action) {
+    Segment<T> seg = segmentFor(key);
+    seg.lock.lock();
     try {
-      Set<Long> keys = cache.keySet();
-      for (long key :keys) {
-        // 这里关闭，写回资源的时候，无论是否外面引用，都会移除缓存，
-        // 如果references == 0,那么就会刷回数据源；否则，直接移除。
-        release(key);
-        references.remove(key);
-        cache.remove(key);
+      T obj = seg.cache.get(key);
+      if (obj == null) {
+        return NOT_CACHED;
+      }
+      if (seg.references.get(key) != 0) {
+        return PINNED;
       }
+      if (!action.test(obj)) {
+        return REJECTED;
+      }
+      seg.references.put(key, 1);
+      return ACQUIRED;
+    } finally {
+      seg.lock.unlock();
+    }
+  }
+
+  /**
+   * 资源是否在缓存中或正在被获取
+   * @param key
+   * @return
+   */
+  protected boolean isCached(long key) {
+    Segment<T> seg = segmentFor(key);
+    seg.lock.lock();
+    try {
+      return seg.cache.containsKey(key) || seg.getting.containsKey(key);
     } finally {
-      lock.unlock();
+      seg.lock.unlock();
+    }
+  }
+
+  /**
+   * 关闭缓存，写回所有资源
+   * 这里关闭，写回资源的时候，无论是否外面引用，都会移除缓存
+   */
+  protected void close() {
+    for (Segment<T> seg : segments) {
+      seg.lock.lock();
+      try {
+        List<T> objs = new ArrayList<>(seg.cache.values());
+        for (T obj : objs) {
+          releaseForCache(obj);
+        }
+        count.addAndGet(-seg.cache.size());
+        seg.references.clear();
+        seg.cache.clear();
+      } finally {
+        seg.lock.unlock();
+      }
     }
   }
 
@@ -0,0 +1,43 @@
+package com.axuan.mydb.backend.common;
+
+import com.axuan.mydb.backend.common.impl.ClockPolicy;
+import com.axuan.mydb.backend.common.impl.TwoQueuePolicy;
+import com.axuan.mydb.backend.utils.Panic;
+import com.axuan.mydb.common.Error;
+import java.util.function.LongPredicate;
+
+/**
+ * 缓存的置换策略，决定缓存满时驱逐哪一个资源
+ * 实现类需要自己保证线程安全，并且不能在持有自身锁的情况下调用除tryEvict以外的缓存方法
+ * @author axuan
+ */
+public interface ReplacementPolicy {
+
+  public static final String CLOCK = "clock";
+
+  public static final String TWO_QUEUE = "2q";
+
+  /**资源被加载进缓存*/
+  void record(long key);
+
+  /**资源在缓存中被命中*/
+  void access(long key);
+
+  /**
+   * 选出一个受害者，tryEvict返回true说明该资源已被缓存摘除，策略也应将其移除
+   * @param tryEvict
+   * @return 被驱逐的key，没有可驱逐的资源时返回-1
+   */
+  long victim(LongPredicate tryEvict);
+
+  public static ReplacementPolicy newPolicy(String name, int capacity) {
+    if (name == null || CLOCK.equalsIgnoreCase(name)) {
+      return new ClockPolicy(capacity);
+    }
+    if (TWO_QUEUE.equalsIgnoreCase(name)) {
+      return new TwoQueuePolicy(capacity);
+    }
+    Panic.panic(Error.InvalidPolicyException);
+    return null;
+  }
+}
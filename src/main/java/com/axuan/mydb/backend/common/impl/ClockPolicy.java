@@ -0,0 +1,118 @@
+package com.axuan.mydb.backend.common.impl;
+
+import com.axuan.mydb.backend.common.ReplacementPolicy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongPredicate;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * CLOCK置换策略
+ * 所有资源排成一个环，每个资源有一个访问位，命中时置1
+ * 驱逐时指针绕环转动，遇到访问位为1的清零跳过，遇到为0且未被引用的就驱逐
+ * @author axuan
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+  private static final long EMPTY = -1;
+
+  private long[] keys;           // 环上每个槽位存放的key，EMPTY表示空槽
+  private boolean[] referenced;  // 每个槽位的访问位
+  private Map<Long, Integer> slots; // key所在的槽位
+  private int hand;              // 时钟指针
+  private Lock lock;
+
+  public ClockPolicy(int capacity) {
+    // 驱逐与加载之间存在短暂的重叠，多留一些槽位
+    int size = Math.max(capacity, 1) * 2;
+    this.keys = new long[size];
+    this.referenced = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      keys[i] = EMPTY;
+    }
+    this.slots = new HashMap<>();
+    this.hand = 0;
+    this.lock = new ReentrantLock();
+  }
+
+  @Override
+  public void record(long key) {
+    lock.lock();
+    try {
+      Integer slot = slots.get(key);
+      if (slot != null) {
+        referenced[slot] = true;
+        return;
+      }
+      int free = findFreeSlot();
+      keys[free] = key;
+      referenced[free] = false;
+      slots.put(key, free);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void access(long key) {
+    lock.lock();
+    try {
+      Integer slot = slots.get(key);
+      if (slot != null) {
+        referenced[slot] = true;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long victim(LongPredicate tryEvict) {
+    lock.lock();
+    try {
+      // 最多转两圈：第一圈清除访问位，第二圈一定能遇到所有未被引用的资源
+      for (int i = 0; i < keys.length * 2; i++) {
+        int cur = hand;
+        hand = (hand + 1) % keys.length;
+        long key = keys[cur];
+        if (key == EMPTY) {
+          continue;
+        }
+        if (referenced[cur]) {
+          referenced[cur] = false;
+          continue;
+        }
+        if (tryEvict.test(key)) {
+          keys[cur] = EMPTY;
+          slots.remove(key);
+          return key;
+        }
+      }
+      return EMPTY;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private int findFreeSlot() {
+    for (int i = 0; i < keys.length; i++) {
+      int cur = (hand + i) % keys.length;
+      if (keys[cur] == EMPTY) {
+        return cur;
+      }
+    }
+    // 槽位不足时扩容
+    int old = keys.length;
+    long[] newKeys = new long[old * 2];
+    boolean[] newReferenced = new boolean[old * 2];
+    System.arraycopy(keys, 0, newKeys, 0, old);
+    System.arraycopy(referenced, 0, newReferenced, 0, old);
+    for (int i = old; i < old * 2; i++) {
+      newKeys[i] = EMPTY;
+    }
+    keys = newKeys;
+    referenced = newReferenced;
+    return old;
+  }
+}
@@ -0,0 +1,114 @@
+package com.axuan.mydb.backend.common.impl;
+
+import com.axuan.mydb.backend.common.ReplacementPolicy;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.function.LongPredicate;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 2Q置换策略，可以抵抗一次性的大范围扫描
+ * A1in: 第一次被加载的资源，FIFO
+ * A1out: 最近从A1in中被驱逐的key(只记录key，不占缓存)
+ * Am: 在A1out中再次被加载的热资源，LRU
+ * @author axuan
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+  private static final long NONE = -1;
+
+  private int kIn;   // A1in的目标大小
+  private int kOut;  // A1out的最大长度
+
+  private LinkedHashSet<Long> a1in;
+  private LinkedHashSet<Long> a1out;
+  private LinkedHashMap<Long, Boolean> am;  // 按访问顺序排列，头部是最久未使用的
+  private Lock lock;
+
+  public TwoQueuePolicy(int capacity) {
+    this.kIn = Math.max(capacity / 4, 1);
+    this.kOut = Math.max(capacity / 2, 1);
+    this.a1in = new LinkedHashSet<>();
+    this.a1out = new LinkedHashSet<>();
+    this.am = new LinkedHashMap<>(16, 0.75f, true);
+    this.lock = new ReentrantLock();
+  }
+
+  @Override
+  public void record(long key) {
+    lock.lock();
+    try {
+      if (am.containsKey(key) || a1in.contains(key)) {
+        am.get(key);
+        return;
+      }
+      if (a1out.remove(key)) {
+        am.put(key, true);  // 短时间内再次被需要，说明是热资源
+      } else {
+        a1in.add(key);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void access(long key) {
+    lock.lock();
+    try {
+      am.get(key); // 在Am中则移到尾部，在A1in中的不做调整
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long victim(LongPredicate tryEvict) {
+    lock.lock();
+    try {
+      long key = NONE;
+      if (a1in.size() > kIn || am.isEmpty()) {
+        key = evictFromA1in(tryEvict);
+        if (key != NONE) {
+          return key;
+        }
+      }
+      key = evictFrom(am.keySet().iterator(), tryEvict);
+      if (key != NONE) {
+        return key;
+      }
+      return evictFromA1in(tryEvict);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 从A1in中驱逐，并把key记入A1out
+   */
+  private long evictFromA1in(LongPredicate tryEvict) {
+    long key = evictFrom(a1in.iterator(), tryEvict);
+    if (key != NONE) {
+      a1out.add(key);
+      if (a1out.size() > kOut) {
+        Iterator<Long> it = a1out.iterator();
+        it.next();
+        it.remove();
+      }
+    }
+    return key;
+  }
+
+  private long evictFrom(Iterator<Long> it, LongPredicate tryEvict) {
+    while (it.hasNext()) {
+      long key = it.next();
+      if (tryEvict.test(key)) {
+        it.remove();
+        return key;
+      }
+    }
+    return NONE;
+  }
+}
@@ -0,0 +1,119 @@
+package com.axuan.mydb.backend.dm;
+
+import com.axuan.mydb.backend.dm.logger.Logger;
+import com.axuan.mydb.backend.tm.TransactionManager;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 异步提交的事务提交时只写入提交日志，不等待落盘，在内存中已经是提交状态
+ * 后台线程每隔delay毫秒把日志落盘一次，之后才把这些事务的状态写入XID文件，
+ * XID文件中的提交状态不会早于提交日志落盘，崩溃后恢复出的是日志的一个前缀，最多丢失最后delay毫秒的提交
+ * @author axuan
+ */
+class AsyncCommitter {
+
+  private Logger lg;
+  private TransactionManager tm;
+  private long delay;
+
+  private Map<Long, Long> pending; // 事务到它的提交日志末尾的LSN
+  private Thread flusher;
+  private Lock lock;
+  private Condition wakeUp;
+  private volatile boolean closed;
+
+  AsyncCommitter(Logger lg, TransactionManager tm, long delay) {
+    this.lg = lg;
+    this.tm = tm;
+    this.delay = delay;
+    this.pending = new ConcurrentHashMap<>();
+    this.lock = new ReentrantLock();
+    this.wakeUp = lock.newCondition();
+  }
+
+  /**
+   * 记录一个提交日志还没有落盘的事务，第一次调用时启动后台线程
+   */
+  void add(long xid, long lsn) {
+    pending.put(xid, lsn);
+    if (flusher != null) {
+      return;
+    }
+    lock.lock();
+    try {
+      if (flusher == null && !closed) {
+        flusher = new Thread(this::run, "async-committer");
+        flusher.setDaemon(true);
+        flusher.start();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 事务的状态是否还没有写入XID文件，检查点不能删除它的日志
+   */
+  boolean isPending(long xid) {
+    return pending.containsKey(xid);
+  }
+
+  private void run() {
+    while (!closed) {
+      lock.lock();
+      try {
+        wakeUp.await(delay, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        break;
+      } finally {
+        lock.unlock();
+      }
+      flush();
+    }
+  }
+
+  /**
+   * 日志落盘到所有已记录事务的提交日志之后，再把它们的状态写入XID文件
+   */
+  void flush() {
+    long lsn = 0;
+    for (long l : pending.values()) {
+      lsn = Math.max(lsn, l);
+    }
+    if (lsn == 0) {
+      return;
+    }
+    lg.flush(lsn);
+    for (Map.Entry<Long, Long> e : pending.entrySet()) {
+      if (e.getValue() <= lsn) {
+        tm.commit(e.getKey());
+        pending.remove(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  /**
+   * 停止后台线程并落盘剩余的提交，在关闭XID文件之前调用
+   */
+  void close() {
+    lock.lock();
+    try {
+      closed = true;
+      wakeUp.signal();
+    } finally {
+      lock.unlock();
+    }
+    if (flusher != null) {
+      try {
+        flusher.join();
+      } catch (InterruptedException ignored) {
+      }
+    }
+    flush();
+  }
+}
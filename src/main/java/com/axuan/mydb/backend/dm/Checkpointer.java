@@ -0,0 +1,93 @@
+package com.axuan.mydb.backend.dm;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台检查点线程
+ * 写日志的线程在距上一次检查点超过间隔时只唤醒它，检查点中的日志落盘、冻结XID、
+ * XID文件落盘和删除日志段都不在写入路径上，也不会在持有DataItem写锁时进行
+ * @author axuan
+ */
+class Checkpointer {
+
+  private DataManagerImpl dm;
+  private Thread thread;
+  private Lock lock;
+  private Condition wakeUp;
+  private volatile boolean requested;
+  private volatile boolean closed;
+
+  Checkpointer(DataManagerImpl dm) {
+    this.dm = dm;
+    this.lock = new ReentrantLock();
+    this.wakeUp = lock.newCondition();
+  }
+
+  /**
+   * 请求一次检查点，第一次调用时启动后台线程，已有请求在等待时直接返回
+   */
+  void request() {
+    if (requested) {
+      return;
+    }
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      requested = true;
+      if (thread == null) {
+        thread = new Thread(this::run, "checkpointer");
+        thread.setDaemon(true);
+        thread.start();
+      }
+      wakeUp.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void run() {
+    while (true) {
+      lock.lock();
+      try {
+        while (!requested && !closed) {
+          wakeUp.await();
+        }
+        if (closed) {
+          return;
+        }
+        // 先清除请求再做检查点，检查点进行中到达的请求在这次做完后再做一次
+        requested = false;
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        lock.unlock();
+      }
+      dm.checkpoint();
+    }
+  }
+
+  /**
+   * 停止后台线程，正在进行的检查点做完才返回，在关闭页面缓存和日志之前调用
+   */
+  void close() {
+    Thread t;
+    lock.lock();
+    try {
+      closed = true;
+      wakeUp.signal();
+      t = thread;
+    } finally {
+      lock.unlock();
+    }
+    if (t != null) {
+      try {
+        t.join();
+      } catch (InterruptedException ignored) {
+      }
+    }
+  }
+}
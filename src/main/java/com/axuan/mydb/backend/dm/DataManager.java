@@ -4,6 +4,7 @@ import com.axuan.mydb.backend.dm.dataItem.DataItem;
 import com.axuan.mydb.backend.dm.logger.Logger;
 import com.axuan.mydb.backend.dm.page.PageOne;
 import com.axuan.mydb.backend.dm.pageCache.PageCache;
+import com.axuan.mydb.backend.dm.pageCache.PageCacheOptions;
 import com.axuan.mydb.backend.tm.TransactionManager;
 
 /**
@@ -11,30 +12,89 @@ import com.axuan.mydb.backend.tm.TransactionManager;
  * @author axuan
  */
 public interface DataManager {
+
+  long ASYNC_COMMIT_DELAY = 200; // 异步提交的事务默认最迟多少毫秒之后落盘，崩溃时最多丢失这段时间内的提交
+
   DataItem read(long uid) throws Exception;
 
   long insert(long xid, byte[] data) throws Exception;
 
+  /**数据库的页面大小，上层据此决定数据结构的大小*/
+  int getPageSize();
+
+  /**提示即将读取uid，异步将其所在页面读入缓存*/
+  void prefetch(long uid);
+
+  /**写入事务的提交日志并等待它落盘，之后才能在tm中标记为已提交*/
+  void logCommit(long xid);
+
+  /**
+   * 异步提交：写入提交日志但不等待落盘，之后在tm中只在内存里标记为已提交，日志落盘后再写入XID文件
+   * @return 事务没有写过日志时返回false，不需要等待日志落盘，直接在tm中提交
+   */
+  boolean logCommitAsync(long xid);
+
   void close();
 
 
   public static DataManager create(String path, long mem, TransactionManager tm) {
-    PageCache pc = PageCache.create(path, mem);
+    return create(path, PageCacheOptions.newOptions(mem), tm);
+  }
+
+  public static DataManager create(String path, PageCacheOptions options, TransactionManager tm) {
+    return create(path, options, tm, ASYNC_COMMIT_DELAY);
+  }
+
+  /**
+   * @param asyncCommitDelay 异步提交的事务最迟多少毫秒之后落盘
+   */
+  public static DataManager create(String path, PageCacheOptions options, TransactionManager tm,
+                                   long asyncCommitDelay) {
+    PageCache pc = PageCache.create(path, options);
     Logger lg = Logger.create(path);
 
-    DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+    DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, asyncCommitDelay);
     dm.initPageOne();
     return dm;
   }
 
   public static DataManager open(String path, long mem, TransactionManager tm) {
-    PageCache pc = PageCache.open(path, mem);
+    return open(path, PageCacheOptions.newOptions(mem), tm);
+  }
+
+  public static DataManager open(String path, PageCacheOptions options, TransactionManager tm) {
+    return open(path, options, tm, ASYNC_COMMIT_DELAY);
+  }
+
+  /**
+   * @param asyncCommitDelay 异步提交的事务最迟多少毫秒之后落盘
+   */
+  public static DataManager open(String path, PageCacheOptions options, TransactionManager tm,
+                                 long asyncCommitDelay) {
+    return open(path, options, tm, false, asyncCommitDelay);
+  }
+
+  /**
+   * 以备库打开，只重做主库发来的日志，不写自己的日志
+   */
+  public static DataManagerImpl openStandby(String path, PageCacheOptions options, TransactionManager tm) {
+    return open(path, options, tm, true, ASYNC_COMMIT_DELAY);
+  }
+
+  static DataManagerImpl open(String path, PageCacheOptions options, TransactionManager tm, boolean standby,
+                              long asyncCommitDelay) {
+    PageCache pc = PageCache.open(path, options);
     Logger lg = Logger.open(path);
-    DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+    DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, asyncCommitDelay);
+    dm.standby = standby;
     if (!dm.loadCheckPageOne()) {
-      Recover.recover(tm, lg, pc);
+      Recover.recover(tm, lg, pc, standby);
     }
     dm.fillPageIndex();
+    if (!standby) {
+      // 恢复之后仍然活跃的事务不会再结束，标记为回滚后才能被冻结
+      tm.abortUnfinished();
+    }
     PageOne.setVcOpen(dm.pageOne);
     dm.pc.flushPage(dm.pageOne);
 
@@ -10,10 +10,16 @@ import com.axuan.mydb.backend.dm.pageCache.PageCache;
 import com.axuan.mydb.backend.dm.pageIndex.PageIndex;
 import com.axuan.mydb.backend.dm.pageIndex.PageInfo;
 import com.axuan.mydb.backend.tm.TransactionManager;
+import com.axuan.mydb.backend.tm.impl.TransactionManagerImpl;
 import com.axuan.mydb.backend.utils.Panic;
 import com.axuan.mydb.backend.utils.Types;
 import com.axuan.mydb.backend.common.AbstractCache;
 import com.axuan.mydb.common.Error;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author axuan
@@ -21,22 +27,45 @@ import com.axuan.mydb.common.Error;
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager{
 
+  private static final long CHECKPOINT_INTERVAL = 1L << 24; // 每写入16MB日志做一次模糊检查点
+
   TransactionManager tm;
   PageCache pc;
   Logger logger;
   PageIndex pIndex;
   Page pageOne;
 
+  long checkpointInterval = CHECKPOINT_INTERVAL;
+  private volatile long lastCheckpoint; // 上一次检查点日志末尾的LSN
+  Checkpointer checkpointer;
+  private Map<Long, Long> firstLsns; // 写过日志的事务到它第一条日志之前的LSN，检查点时清理已结束的事务
+  boolean standby; // 备库的日志与主库的LSN一致，不能写入自己的日志
+  AsyncCommitter asyncCommitter;
+
   public DataManagerImpl(
       PageCache pc,
       Logger logger,
       TransactionManager tm
+  ) {
+    this(pc, logger, tm, ASYNC_COMMIT_DELAY);
+  }
+
+  public DataManagerImpl(
+      PageCache pc,
+      Logger logger,
+      TransactionManager tm,
+      long asyncCommitDelay
   ) {
     super(0);
     this.tm = tm;
     this.pc = pc;
     this.logger = logger;
-    this.pIndex = new PageIndex();
+    pc.setLogger(logger);
+    this.pIndex = new PageIndex(pc.getPageSize());
+    this.lastCheckpoint = logger.tail();
+    this.checkpointer = new Checkpointer(this);
+    this.firstLsns = new ConcurrentHashMap<>();
+    this.asyncCommitter = new AsyncCommitter(logger, tm, asyncCommitDelay);
   }
 
   @Override
@@ -52,7 +81,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
   @Override
   public long insert(long xid, byte[] data) throws Exception {
     byte[] raw = DataItem.wrapDataItemRaw(data);
-    if (raw.length > PageX.MAX_FREE_SPACE) {
+    if (raw.length > PageX.maxFreeSpace(pc.getPageSize())) {
       throw Error.DataToolLargeException;
     }
 
@@ -63,8 +92,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
       if (pi != null) {
         break;
       } else {
-        int newPage = pc.newPage(PageX.initRaw());
-        pIndex.add(newPage, PageX.MAX_FREE_SPACE);
+        int newPage = pc.newPage(PageX.initRaw(pc.getPageSize()));
+        pIndex.add(newPage, PageX.maxFreeSpace(pc.getPageSize()));
       }
     }
     if (pi == null) {
@@ -73,45 +102,196 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     Page pg = null;
     int freeSpace = 0;
+    long uid, lsn;
     try {
       pg = pc.getPage(pi.pgNo);
-      // 首先做日志
+      // 首先做日志，页面在日志之前变脏，recLSN才不会晚于这条日志
+      pg.setDirty(true);
       byte[] log = Recover.insertLog(xid, pg, raw);
-      logger.log(log);
+      lsn = log(xid, log);
 
       // 再执行插入操作
       short offset = PageX.insert(pg, raw);
-
-      pg.release();
-      return Types.addressToUid(pi.pgNo, offset);
+      PageX.setPageLsn(pg, lsn);
+      uid = Types.addressToUid(pi.pgNo, offset);
 
     } finally {
-      // 将取出的pg重新插入pIndex
+      // 将取出的pg重新插入pIndex，页帧会被复用，必须在释放页面之前读取空闲空间
       if (pg != null) {
-        pIndex.add(pi.pgNo, PageX.getFreeSpace(pg));
-      } else {
-        pIndex.add(pi.pgNo, freeSpace);
+        freeSpace = PageX.getFreeSpace(pg);
+        pg.release();
       }
+      pIndex.add(pi.pgNo, freeSpace);
     }
+    checkpointIfNeeded(lsn);
+    return uid;
+  }
+
+  @Override
+  public int getPageSize() {
+    return pc.getPageSize();
+  }
+
+  @Override
+  public void prefetch(long uid) {
+    pc.prefetch((int)(uid >>> 32));
+  }
+
+  /**
+   * 没有写过日志的事务没有修改数据，不需要提交日志，崩溃后它一直处于活跃状态也不影响可见性
+   */
+  @Override
+  public void logCommit(long xid) {
+    if (!firstLsns.containsKey(xid)) {
+      return;
+    }
+    logger.flush(logger.log(Recover.commitLog(xid)));
+  }
+
+  @Override
+  public boolean logCommitAsync(long xid) {
+    if (!firstLsns.containsKey(xid)) {
+      return false;
+    }
+    asyncCommitter.add(xid, logger.log(Recover.commitLog(xid)));
+    return true;
   }
 
   @Override
   public void close() {
+    checkpointer.close();
+    asyncCommitter.close();
     super.close();
-    logger.close();
 
     PageOne.setVcClose(pageOne);
     pageOne.release();
+    int pageNumber = pc.getPageNumber();
+    // 页面写回时还要等待日志落盘，日志最后关闭
     pc.close();
+    if (standby) {
+      logger.close();
+      return;
+    }
+    // 所有页面都已落盘，之前的日志不再需要，其中的提交日志由XID文件代替
+    tm.sync();
+    long tail = logger.tail();
+    logger.checkpoint(Recover.checkpointLog(pageNumber, tail, tail, Collections.emptyMap(), Collections.emptyMap()),
+        Long.MAX_VALUE);
+    logger.close();
   }
 
 
   // 为xid生成update日志
   public void logDataItem(long xid, DataItem di) {
     byte[] log = Recover.updateLog(xid, di);
-    logger.log(log);
+    long lsn = log(xid, log);
+    PageX.setPageLsn(di.page(), lsn);
+    checkpointIfNeeded(lsn);
   }
 
+  /**
+   * 写入修改页面的日志，页面已经标记为脏页
+   * 事务的第一条日志之前记下当时日志的末尾，事务结束之前检查点不能删除它之后的日志
+   * @return 日志末尾的LSN
+   */
+  private long log(long xid, byte[] log) {
+    if (xid != TransactionManagerImpl.SUPER_XID && !firstLsns.containsKey(xid)) {
+      firstLsns.putIfAbsent(xid, logger.tail());
+    }
+    return logger.log(log);
+  }
+
+  /**
+   * 距上一次检查点的日志超过checkpointInterval时，唤醒后台线程做一次检查点，写日志的线程不等待
+   * @param lsn
+   */
+  private void checkpointIfNeeded(long lsn) {
+    if (lsn - lastCheckpoint >= checkpointInterval) {
+      checkpointer.request();
+    }
+  }
+
+  /**
+   * 模糊检查点，只由Checkpointer的后台线程调用：不等待脏页写回，只记录脏页表和活跃事务
+   * 恢复时redo从脏页表中最小的recLSN开始；活跃事务回滚还需要它们的日志，
+   * 因此只删除redo起点和活跃事务第一条日志之前的段
+   * 被删除的段中可能有提交日志，删除之前先把已结束事务的状态落盘
+   * 顺便冻结已经全部结束的事务，XID文件不随事务总数增长
+   */
+  void checkpoint() {
+    long beginLsn = logger.tail();
+    Map<Integer, Long> dirty = pc.dirtyPageTable();
+    long redoLsn = beginLsn;
+    for (long recLsn : dirty.values()) {
+      redoLsn = Math.min(redoLsn, recLsn);
+    }
+    long keepLsn = redoLsn;
+    Map<Long, Long> active = new HashMap<>();
+    for (Iterator<Map.Entry<Long, Long>> it = firstLsns.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Long, Long> e = it.next();
+      if (!tm.isActive(e.getKey()) && !asyncCommitter.isPending(e.getKey())) {
+        it.remove();
+        continue;
+      }
+      active.put(e.getKey(), e.getValue());
+      keepLsn = Math.min(keepLsn, e.getValue());
+    }
+    tm.freeze();
+    tm.sync();
+    byte[] log = Recover.checkpointLog(pc.getPageNumber(), beginLsn, redoLsn, dirty, active);
+    lastCheckpoint = logger.checkpoint(log, keepLsn);
+  }
+
+
+  /**
+   * 备库：把主库的一条日志追加到本地日志，再redo到页面上，本地日志与主库的LSN保持一致
+   * 修改DataItem的日志在DataItem的写锁下redo，备库上的读取不会看到修改了一半的数据
+   * 主库的检查点日志在备库上按备库自己的脏页表删除不再需要的段
+   * @param lsn 日志在主库中末尾的LSN
+   * @param log
+   */
+  public void redo(long lsn, byte[] log) {
+    long local;
+    boolean checkpoint = Recover.isCheckpointLog(log);
+    if (checkpoint) {
+      long keepLsn = logger.tail();
+      for (long recLsn : pc.dirtyPageTable().values()) {
+        keepLsn = Math.min(keepLsn, recLsn);
+      }
+      tm.sync();
+      local = logger.checkpoint(log, keepLsn);
+    } else {
+      local = logger.log(log);
+    }
+    if (local != lsn) {
+      Panic.panic(Error.StandbyDivergedException);
+    }
+    if (checkpoint) {
+      return;
+    }
+    long uid = Recover.updatedUid(log);
+    if (uid < 0) {
+      Recover.redo(pc, lsn, log);
+      return;
+    }
+    DataItem di = null;
+    try {
+      di = super.get(uid);
+    } catch (Exception e) {
+      Panic.panic(e);
+    }
+    di.lock();
+    try {
+      Recover.redo(pc, lsn, log);
+    } finally {
+      di.unlock();
+      di.release();
+    }
+  }
+
+  public Logger getLogger() {
+    return logger;
+  }
 
   public void releaseDataItem(DataItemImpl di) {
     super.release(di.getUid());
@@ -135,7 +315,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
   // 在创建文件时初始化pageOne
   void initPageOne() {
-    int pgNo = pc.newPage(PageOne.InitRaw());
+    int pgNo = pc.newPage(PageOne.InitRaw(pc.getPageSize()));
     assert pgNo == 1;
     try {
       pageOne = pc.getPage(pgNo);
@@ -10,12 +10,15 @@ import com.axuan.mydb.backend.utils.Panic;
 import com.axuan.mydb.backend.utils.Parser;
 import com.axuan.mydb.backend.common.SubArray;
 import com.google.common.primitives.Bytes;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * 当数据库宕机的时候，通过日志文件来数据恢复的
@@ -24,6 +27,24 @@ import java.util.Map.Entry;
  * [LogType][XID][UID][OldRaw][NewRaw]
  * insertLog:
  * [LogType][XID][PgNo][Offset][Raw]
+ * deltaLog:
+ * [LogType][XID][UID][Offset1][Length1][OldRaw1][NewRaw1][Offset2]...
+ * 只记录DataItem中变化的字节区间，Offset为区间在DataItem中的偏移，比完整的前后镜像更小时代替updateLog
+ * checkpointLog:
+ * [LogType][PageNumber][BeginLsn][RedoLsn][DirtyCount][PgNo1][RecLsn1]...[ActiveCount][XID1][FirstLsn1]...
+ * 模糊检查点不等待脏页写回，记录检查点时的页数、脏页表和活跃事务
+ * BeginLsn为开始检查点时日志的末尾，RedoLsn为它和脏页表中最小的recLSN中较小者，DirtyCount为-1表示脏页表太大没有记录
+ * 旧版本的检查点日志只有[LogType][PageNumber]，是正常关闭时日志的第一条，之前的页面都已落盘
+ * commitLog:
+ * [LogType][XID]
+ * 事务提交时写入并落盘，XID文件中的状态不再单独落盘，恢复时据此把事务重新标记为已提交
+ *
+ * 日志的LSN为日志末尾在日志流中的位置，PageX的PageLSN为最后一条修改它的日志的LSN
+ * redo时，最后一个检查点之前的日志只有页面在脏页表中且LSN大于页面的recLSN时才需要，
+ * 页面的PageLSN不小于日志的LSN时说明修改已经落盘，同样跳过
+ *
+ * 备库只redo：主库的日志逐条追加到备库的日志并立即redo，事务是否可见由主库发来的提交和回滚决定
+ * 备库的检查点日志是主库的，脏页表不适用于备库，备库崩溃后从日志的开头redo，只靠PageLSN跳过
  * @author axuan
  */
 public class Recover {
@@ -35,6 +56,12 @@ public class Recover {
 
   private static final byte LOG_TYPE_UPDATE = 1; // 更新日志的标识符
 
+  private static final byte LOG_TYPE_CHECKPOINT = 2; // 检查点日志的标识符
+
+  private static final byte LOG_TYPE_DELTA = 3; // 增量更新日志的标识符
+
+  private static final byte LOG_TYPE_COMMIT = 4; // 提交日志的标识符
+
 
   private static final int REDO = 0; // 相当于常量类，记作重做操作
 
@@ -60,27 +87,106 @@ public class Recover {
     byte[] newRaw;
   }
 
+  /**
+   * 恢复时读出的一条日志
+   */
+  static class LogEntry {
+    long lsn;
+    int pgNo;
+    byte[] log;
+
+    LogEntry(long lsn, int pgNo, byte[] log) {
+      this.lsn = lsn;
+      this.pgNo = pgNo;
+      this.log = log;
+    }
+  }
 
-  // 用于数据恢复
+  static class CheckpointInfo {
+    long lsn;
+    int pageNumber;
+    long beginLsn;
+    long redoLsn;
+    Map<Integer, Long> dirty; // 为null表示没有记录脏页表
+    Map<Long, Long> active;
+  }
+
+  /**
+   * 增量更新日志中的变化区间
+   */
+  static class DeltaRange {
+    short offset; // 区间在DataItem中的偏移
+    byte[] oldRaw;
+    byte[] newRaw;
+  }
+
+
+  /**
+   * 用于数据恢复
+   * 只读一遍日志：解码出每条日志所在的页面和事务，按页号把日志分给RECOVER_WORKERS个分区，
+   * 每个分区由一个线程先按日志顺序redo已结束事务的日志，再逆序undo活跃事务的日志
+   * 不同分区的页面互不相交，同一页面的日志在同一分区中保持日志顺序，因此各分区可以并行恢复
+   * redo根据最后一个检查点的脏页表和页面的PageLSN跳过已经落盘的修改
+   * 事务是否活跃在读完日志、按提交日志重新标记之后再判断
+   */
   public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    recover(tm, lg, pc, false);
+  }
+
+  /**
+   * @param standby 是否是备库，备库只redo
+   */
+  public static void recover(TransactionManager tm, Logger lg, PageCache pc, boolean standby) {
     System.out.println("Recovering...");
 
+    int workers = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+    List<List<LogEntry>> partitions = new ArrayList<>(workers);
+    for (int i = 0; i < workers; i++) {
+      partitions.add(new ArrayList<>());
+    }
+    Map<Long, Boolean> active = new HashMap<>(); // 事务是否活跃，每个事务只查询一次
+    List<Long> committed = new ArrayList<>();
+
     lg.rewind();
     int maxPgNo = 0;
+    CheckpointInfo checkpoint = null;
     while (true) {
       byte[] log = lg.next();
       if (log == null) break;
+      long lsn = lg.readLsn();
       int pgNo;
-      if (isInsertLog(log)) {
+      long xid;
+      if (isCheckpointLog(log)) {
+        // 检查点之前的页面可能没有日志，不能被截掉
+        checkpoint = parseCheckpointLog(log, lsn);
+        maxPgNo = Math.max(maxPgNo, checkpoint.pageNumber);
+        continue;
+      } else if (isCommitLog(log)) {
+        committed.add(xidOf(log));
+        continue;
+      } else if (isInsertLog(log)) {
         InsertLogInfo li = parseInsertLog(log);
         pgNo = li.pgNo;
+        xid = li.xid;
       } else {
-        UpdateLogInfo li  = parseUpdateLog(log);
+        // updateLog和deltaLog的UID位置相同
+        UpdateLogInfo li  = parseUpdateHeader(log);
         pgNo = li.pgNo;
+        xid = li.xid;
       }
       if (pgNo > maxPgNo) {
         maxPgNo = pgNo;
       }
+      active.put(xid, false);
+      partitions.get(pgNo % workers).add(new LogEntry(lsn, pgNo, log));
+    }
+    if (!standby) {
+      for (long xid : committed) {
+        tm.commit(xid);
+      }
+      for (Map.Entry<Long, Boolean> e : active.entrySet()) {
+        e.setValue(tm.isActive(e.getKey()));
+      }
     }
 
     if (maxPgNo == 0) {
@@ -89,102 +195,125 @@ public class Recover {
     pc.truncateByPgNo(maxPgNo);
     System.out.println("Truncate to " + maxPgNo + "pages.");
 
-    redoTransactions(tm, lg, pc);
-    System.out.println("Redo Transactions Over.");
-
-    undoTransactions(tm, lg, pc);
-    System.out.println("Undo Transactions Over.");
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    List<Future<?>> futures = new ArrayList<>(workers);
+    CheckpointInfo cp = standby ? null : checkpoint;
+    for (List<LogEntry> partition : partitions) {
+      if (!partition.isEmpty()) {
+        futures.add(executor.submit(() -> recoverPartition(partition, active, cp, pc)));
+      }
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (Exception e) {
+      Panic.panic(e);
+    } finally {
+      executor.shutdown();
+    }
+    System.out.println("Redo and Undo Transactions Over.");
   }
 
 
-
-
   /**
-   * 重做日志的[0]的标识符是0
-   * 通过重做日志，将丢失的数据，重做
-   * 步骤是：从头开始，遍历所有的日志，针对不同的日志，进行不同的操作。
+   * 恢复一个分区中的页面
+   * 先从头开始，redo所有已结束(提交或回滚)事务的日志：
    * Insert的话：是找到对应page的offset，然后将数据插入
    * Update的话:是找到对应page的offset，将newRaw放入
-   * @param tm 通过事务管理器，来确认这个事务此时的状态，来进行redo或者undo
-   * @param lg 通过日志，来进行获取日志，并根据log[0],来判断到底是Insert日志还是update日志
-   * @param pc 通过页面缓存，将数据写入后，再刷新到磁盘
+   * 再从尾部开始，undo所有活跃事务的日志：
+   * Insert: 会将对应page的offset，改成一个无效值
+   * Update: 会将对应page的offset，改成oldRaw，也就是旧值
+   * @param logs 分区中的日志，按日志顺序
+   * @param active 事务是否活跃
+   * @param cp 最后一个检查点，没有时为null
+   * @param pc
    */
-  private static void redoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
-    lg.rewind();
-    while(true) {
-      byte[] log = lg.next();
-      if (log == null) break;
-      if (isInsertLog(log)) {
-          InsertLogInfo li = parseInsertLog(log);
-          long xid = li.xid;
-          if (!tm.isActive(xid)) {
-            doInsertLog(pc, log, REDO);
-          }
-      } else {
-        UpdateLogInfo xi = parseUpdateLog(log);
-        long xid = xi.xid;
-        if (!tm.isActive(xid)) {
-          doUpdateLog(pc, log, REDO);
-        }
+  private static void recoverPartition(List<LogEntry> logs, Map<Long, Boolean> active, CheckpointInfo cp,
+                                       PageCache pc) {
+    for (LogEntry e : logs) {
+      if (!active.get(xidOf(e.log)) && mayNeedRedo(e, cp)) {
+        doLog(pc, e, REDO);
+      }
+    }
+    for (int i = logs.size() - 1; i >= 0; i--) {
+      LogEntry e = logs.get(i);
+      if (active.get(xidOf(e.log))) {
+        doLog(pc, e, UNDO);
       }
     }
   }
 
+  /**
+   * 检查点开始之前的日志，只有所在页面检查点时是脏页、且日志在页面的recLSN之后时才可能没有落盘
+   */
+  private static boolean mayNeedRedo(LogEntry e, CheckpointInfo cp) {
+    if (cp == null || e.lsn > cp.beginLsn) {
+      return true;
+    }
+    if (cp.dirty == null) {
+      return e.lsn > cp.redoLsn;
+    }
+    Long recLsn = cp.dirty.get(e.pgNo);
+    return recLsn != null && e.lsn > recLsn;
+  }
 
   /**
-   * 回滚日志的[0]标识符是1
-   * 这里回滚也是针对不同的操作，不过它的顺序是从尾部开始遍历
-   * Insert: 会将对应page的offset，改成一个无效值
-   * Update: 会将对应page的offset，改成oldRaw，也就是旧值
-   * // 这里下面的逻辑都是一样的？为什么要分成两个判断。
-   * // 我的理解是获得每个log之后，先通过log[0]来判断它是哪种日志，因为日志的存储方式不一样，转换的方式也不一样。
-   * // 当然，这样做的目的主要还是取出xid，方便后续操作
-   * @param tm
-   * @param lg
-   * @param pc
+   * 备库redo一条主库的日志，主库新建的页面在备库上按顺序建出
+   * @param lsn 日志末尾的LSN
    */
-  private static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
-    Map<Long, List<byte[]>> logCache = new HashMap<>();
-    lg.rewind();
-    while (true) {
-      byte[] log = lg.next();
-      if (log == null) break;
+  public static void redo(PageCache pc, long lsn, byte[] log) {
+    if (isCheckpointLog(log) || isCommitLog(log)) {
+      return;
+    }
+    int pgNo = isInsertLog(log) ? parseInsertLog(log).pgNo : parseUpdateHeader(log).pgNo;
+    while (pc.getPageNumber() < pgNo) {
+      pc.newPage(PageX.initRaw(pc.getPageSize()));
+    }
+    doLog(pc, new LogEntry(lsn, pgNo, log), REDO);
+  }
 
-      if (isInsertLog(log)) {
-        InsertLogInfo li = parseInsertLog(log);
-        long xid = li.xid;
-        if (tm.isActive(xid)) {
-          if (!logCache.containsKey(xid)) {
-            logCache.put(xid, new ArrayList<>());
-          }
-          logCache.get(xid).add(log);
-        }
-      } else {
-        UpdateLogInfo xi = parseUpdateLog(log);
-        long xid = xi.xid;
-        if (tm.isActive(xid)) {
-          if (!logCache.containsKey(xid)) {
-            logCache.put(xid, new ArrayList<>());
-          }
-          logCache.put(xid, new ArrayList<>());
-        }
-      }
+  /**
+   * updateLog和deltaLog修改的DataItem的UID，其他日志返回-1
+   */
+  public static long updatedUid(byte[] log) {
+    if (isInsertLog(log) || isCheckpointLog(log) || isCommitLog(log)) {
+      return -1;
     }
+    return Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+  }
 
-    // 对所有的active log进行倒序undo
-    for (Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-      List<byte[]> logs = entry.getValue();
-      for (int i = logs.size() - 1; i >= 0; i--) {
-        byte[] log = logs.get(i);
-        if (isInsertLog(log)) {
-          doInsertLog(pc, log, UNDO);
-        } else {
-          doUpdateLog(pc, log, UNDO);
-        }
+  private static void doLog(PageCache pc, LogEntry e, int flag) {
+    Page pg = null;
+    try {
+      pg = pc.getPage(e.pgNo);
+    } catch (Exception ex) {
+      Panic.panic(ex);
+    }
+    try {
+      if (flag == REDO && PageX.getPageLsn(pg) >= e.lsn) {
+        return; // 修改已经随页面落盘
+      }
+      if (isInsertLog(e.log)) {
+        doInsertLog(pg, e.log, flag);
+      } else {
+        doUpdateLog(pg, e.log, flag);
+      }
+      if (flag == REDO) {
+        PageX.setPageLsn(pg, e.lsn);
       }
+      // 恢复出的修改落盘之前，这条日志还不能被检查点删除
+      pc.markDirty(pg, e.lsn - 1);
+    } finally {
+      pg.release();
     }
   }
 
+  // insertLog、updateLog、deltaLog和commitLog的XID位置相同
+  private static long xidOf(byte[] log) {
+    return Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_XID + 8));
+  }
+
 
   // [LogType][XID][UID][OldRaw][NewRaw]
   private static final int OF_TYPE = 0;
@@ -196,16 +325,111 @@ public class Recover {
 
 
 
+  /**
+   * 为DataItem的修改生成日志，增量日志更小时使用增量日志
+   * @param xid
+   * @param di
+   * @return
+   */
   public static byte[] updateLog(long xid, DataItem di) {
-    byte[] logType = {LOG_TYPE_UPDATE};
-    byte[] xidRaw = Parser.long2Byte(xid);
-    byte[] uidRaw = Parser.long2Byte(di.getUid());
     byte[] oldRaw = di.getOldRaw();
     SubArray raw = di.getRaw();
     byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
+    List<int[]> ranges = diffRanges(oldRaw, newRaw);
+    int deltaSize = 0;
+    for (int[] range : ranges) {
+      deltaSize += 4 + 2 * (range[1] - range[0]);
+    }
+    if (deltaSize < oldRaw.length + newRaw.length) {
+      return deltaLog(xid, di.getUid(), oldRaw, newRaw, ranges);
+    }
+    byte[] logType = {LOG_TYPE_UPDATE};
+    byte[] xidRaw = Parser.long2Byte(xid);
+    byte[] uidRaw = Parser.long2Byte(di.getUid());
     return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
   }
 
+  private static final int DELTA_MERGE_GAP = 4; // 间隔不超过一个区间头部的两个区间合并为一个
+
+  /**
+   * 找出新旧数据中变化的字节区间[start, end)
+   */
+  private static List<int[]> diffRanges(byte[] oldRaw, byte[] newRaw) {
+    List<int[]> ranges = new ArrayList<>();
+    int i = 0;
+    while (i < newRaw.length) {
+      if (oldRaw[i] == newRaw[i]) {
+        i++;
+        continue;
+      }
+      int start = i;
+      while (i < newRaw.length && oldRaw[i] != newRaw[i]) {
+        i++;
+      }
+      int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+      if (last != null && start - last[1] <= DELTA_MERGE_GAP) {
+        last[1] = i;
+      } else {
+        ranges.add(new int[]{start, i});
+      }
+    }
+    return ranges;
+  }
+
+  // [LogType][XID][UID][Offset1][Length1][OldRaw1][NewRaw1][Offset2]...
+  private static byte[] deltaLog(long xid, long uid, byte[] oldRaw, byte[] newRaw, List<int[]> ranges) {
+    int size = OF_UPDATE_RAW;
+    for (int[] range : ranges) {
+      size += 4 + 2 * (range[1] - range[0]);
+    }
+    byte[] log = new byte[size];
+    log[OF_TYPE] = LOG_TYPE_DELTA;
+    System.arraycopy(Parser.long2Byte(xid), 0, log, OF_XID, 8);
+    System.arraycopy(Parser.long2Byte(uid), 0, log, OF_UPDATE_UID, 8);
+    int pos = OF_UPDATE_RAW;
+    for (int[] range : ranges) {
+      int length = range[1] - range[0];
+      System.arraycopy(Parser.short2Byte((short)range[0]), 0, log, pos, 2);
+      System.arraycopy(Parser.short2Byte((short)length), 0, log, pos + 2, 2);
+      System.arraycopy(oldRaw, range[0], log, pos + 4, length);
+      System.arraycopy(newRaw, range[0], log, pos + 4 + length, length);
+      pos += 4 + 2 * length;
+    }
+    return log;
+  }
+
+  private static List<DeltaRange> parseDeltaRanges(byte[] log) {
+    List<DeltaRange> ranges = new ArrayList<>();
+    int pos = OF_UPDATE_RAW;
+    while (pos < log.length) {
+      DeltaRange range = new DeltaRange();
+      range.offset = Parser.parseShort(Arrays.copyOfRange(log, pos, pos + 2));
+      int length = Parser.parseShort(Arrays.copyOfRange(log, pos + 2, pos + 4));
+      range.oldRaw = Arrays.copyOfRange(log, pos + 4, pos + 4 + length);
+      range.newRaw = Arrays.copyOfRange(log, pos + 4 + length, pos + 4 + 2 * length);
+      ranges.add(range);
+      pos += 4 + 2 * length;
+    }
+    return ranges;
+  }
+
+
+  private static boolean isDeltaLog(byte[] log) {
+    return log[0] == LOG_TYPE_DELTA;
+  }
+
+
+  /**
+   * 只解析updateLog或deltaLog的XID和UID
+   */
+  private static UpdateLogInfo parseUpdateHeader(byte[] log) {
+    UpdateLogInfo li = new UpdateLogInfo();
+    li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
+    long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+    li.offset = (short)(uid & ((1L << 16) - 1));
+    li.pgNo = (int)((uid >>> 32) & ((1L << 32) - 1));
+    return li;
+  }
 
 
   private static UpdateLogInfo parseUpdateLog(byte[] log) {
@@ -223,31 +447,33 @@ public class Recover {
 
 
 
-  private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-    int pgNo;
+  private static void doUpdateLog(Page pg, byte[] log, int flag) {
+    if (isDeltaLog(log)) {
+      doDeltaLog(pg, log, flag);
+      return;
+    }
     short offset;
     byte[] raw;
     if (flag == REDO) {
       UpdateLogInfo xi = parseUpdateLog(log);
-      pgNo = xi.pgNo;
       offset = xi.offset;
       raw = xi.newRaw;
     } else {
       UpdateLogInfo xi = parseUpdateLog(log);
-      pgNo = xi.pgNo;
       offset= xi.offset;
       raw = xi.oldRaw;
     }
-    Page pg = null;
-    try {
-      pg = pc.getPage(pgNo);
-    } catch (Exception e) {
-      Panic.panic(e);
-    }
-    try {
-      PageX.recoverUpdate(pg, raw, offset);
-    } finally {
-      pg.release();
+    PageX.recoverUpdate(pg, raw, offset);
+  }
+
+
+
+
+  private static void doDeltaLog(Page pg, byte[] log, int flag) {
+    UpdateLogInfo xi = parseUpdateHeader(log);
+    for (DeltaRange range : parseDeltaRanges(log)) {
+      byte[] raw = flag == REDO ? range.newRaw : range.oldRaw;
+      PageX.recoverUpdate(pg, raw, (short)(xi.offset + range.offset));
     }
   }
 
@@ -283,25 +509,97 @@ public class Recover {
   }
 
 
-  private static void doInsertLog(PageCache pc, byte[] log, int flag) {
+  private static void doInsertLog(Page pg, byte[] log, int flag) {
     InsertLogInfo li = parseInsertLog(log);
-    Page pg = null;
-    try {
-      pg = pc.getPage(li.pgNo);
-    } catch (Exception e) {
-      Panic.panic(e);
+    if (flag == UNDO) {
+      DataItem.setDataItemRawInvalid(li.raw);
     }
-    try {
-      if (flag == REDO) {
-        PageX.recoverInsert(pg, li.raw, li.offset);
-      } else {
-        DataItem.setDataItemRawInvalid(li.raw);
+    PageX.recoverInsert(pg, li.raw, li.offset);
+  }
+
+
+
+  // [LogType][PageNumber][BeginLsn][RedoLsn][DirtyCount][PgNo][RecLsn]...[ActiveCount][XID][FirstLsn]...
+  private static final int OF_CHECKPOINT_PAGE_NUMBER = OF_TYPE + 1;
+  private static final int OF_CHECKPOINT_BEGIN = OF_CHECKPOINT_PAGE_NUMBER + 4;
+  private static final int OF_CHECKPOINT_REDO = OF_CHECKPOINT_BEGIN + 8;
+  private static final int OF_CHECKPOINT_DIRTY = OF_CHECKPOINT_REDO + 8;
+
+  private static final int MAX_CHECKPOINT_DIRTY = 1 << 15; // 脏页表超过这个大小时只记录RedoLsn
+
+  /**
+   * 生成检查点日志
+   * @param pageNumber 检查点时的页数
+   * @param beginLsn 开始检查点时日志的末尾
+   * @param redoLsn beginLsn和脏页表中最小的recLSN中较小者
+   * @param dirty 脏页表
+   * @param active 活跃事务到它第一条日志之前的LSN
+   * @return
+   */
+  public static byte[] checkpointLog(int pageNumber, long beginLsn, long redoLsn,
+                                     Map<Integer, Long> dirty, Map<Long, Long> active) {
+    int dirtyCount = dirty.size() > MAX_CHECKPOINT_DIRTY ? -1 : dirty.size();
+    ByteBuffer buf = ByteBuffer.allocate(OF_CHECKPOINT_DIRTY + 4 + Math.max(dirtyCount, 0) * 12
+        + 4 + active.size() * 16);
+    buf.put(LOG_TYPE_CHECKPOINT).putInt(pageNumber).putLong(beginLsn).putLong(redoLsn);
+    buf.putInt(dirtyCount);
+    if (dirtyCount > 0) {
+      for (Map.Entry<Integer, Long> e : dirty.entrySet()) {
+        buf.putInt(e.getKey()).putLong(e.getValue());
       }
-    } finally {
-      pg.release();
     }
+    buf.putInt(active.size());
+    for (Map.Entry<Long, Long> e : active.entrySet()) {
+      buf.putLong(e.getKey()).putLong(e.getValue());
+    }
+    return buf.array();
   }
 
 
+  private static CheckpointInfo parseCheckpointLog(byte[] log, long lsn) {
+    CheckpointInfo ci = new CheckpointInfo();
+    ci.lsn = lsn;
+    ByteBuffer buf = ByteBuffer.wrap(log, OF_CHECKPOINT_PAGE_NUMBER, log.length - OF_CHECKPOINT_PAGE_NUMBER);
+    ci.pageNumber = buf.getInt();
+    ci.dirty = new HashMap<>();
+    ci.active = new HashMap<>();
+    if (!buf.hasRemaining()) {
+      // 旧版本的检查点，之前的页面都已落盘
+      ci.beginLsn = ci.redoLsn = lsn;
+      return ci;
+    }
+    ci.beginLsn = buf.getLong();
+    ci.redoLsn = buf.getLong();
+    int dirtyCount = buf.getInt();
+    if (dirtyCount < 0) {
+      ci.dirty = null;
+    }
+    for (int i = 0; i < dirtyCount; i++) {
+      ci.dirty.put(buf.getInt(), buf.getLong());
+    }
+    int activeCount = buf.getInt();
+    for (int i = 0; i < activeCount; i++) {
+      ci.active.put(buf.getLong(), buf.getLong());
+    }
+    return ci;
+  }
+
+
+  public static boolean isCheckpointLog(byte[] log) {
+    return log[0] == LOG_TYPE_CHECKPOINT;
+  }
+
+
+  // [LogType][XID]
+  public static byte[] commitLog(long xid) {
+    byte[] log = new byte[OF_XID + 8];
+    log[OF_TYPE] = LOG_TYPE_COMMIT;
+    System.arraycopy(Parser.long2Byte(xid), 0, log, OF_XID, 8);
+    return log;
+  }
+
+  private static boolean isCommitLog(byte[] log) {
+    return log[0] == LOG_TYPE_COMMIT;
+  }
 
 }
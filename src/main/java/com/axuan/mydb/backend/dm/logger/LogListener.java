@@ -0,0 +1,15 @@
+package com.axuan.mydb.backend.dm.logger;
+
+/**
+ * 日志写入文件时的监听者，用于把日志发送给备库
+ * @author axuan
+ */
+public interface LogListener {
+
+  /**
+   * 一条日志写入了文件(可能还没有落盘)，按LSN顺序调用，调用时持有日志的写入锁，不能阻塞
+   * @param lsn 日志末尾的LSN
+   * @param log 日志的数据
+   */
+  void logged(long lsn, byte[] log);
+}
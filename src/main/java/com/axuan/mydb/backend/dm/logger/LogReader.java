@@ -0,0 +1,17 @@
+package com.axuan.mydb.backend.dm.logger;
+
+/**
+ * 独立于Logger自身读取位置的日志读取器
+ * 关闭之前，检查点不会删除它正在读取的段和之后的段
+ * @author axuan
+ */
+public interface LogReader {
+
+  /**获取到下一个日志，读到末尾时返回null*/
+  byte[] next();
+
+  /**上一次next()读出的日志末尾的LSN*/
+  long readLsn();
+
+  void close();
+}
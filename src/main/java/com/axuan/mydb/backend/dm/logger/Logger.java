@@ -2,7 +2,6 @@ package com.axuan.mydb.backend.dm.logger;
 
 import com.axuan.mydb.backend.dm.logger.impl.LoggerImpl;
 import com.axuan.mydb.backend.utils.Panic;
-import com.axuan.mydb.backend.utils.Parser;
 import com.axuan.mydb.common.Error;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -17,20 +16,56 @@ import java.nio.channels.FileChannel;
  */
 public interface Logger {
 
-  /**创建日志*/
-  void log(byte[] log);
+  /**追加一条日志，不等待落盘，返回日志末尾的LSN，LSN跨越多次打开持续增长*/
+  long log(byte[] log);
+
+  /**已预留的日志末尾的LSN，之后追加的日志的LSN都不小于它*/
+  long tail();
+
+  /**等待此前追加的日志全部落盘，并发调用的线程共享同一次写盘*/
+  void flush();
+
+  /**等待LSN在lsn之前的日志全部落盘*/
+  void flush(long lsn);
+
+  /**
+   * 写入检查点日志并落盘，然后删除只包含keepLsn之前日志的段，返回检查点日志末尾的LSN
+   * keepLsn不小于检查点日志的LSN时，检查点日志开始新的段，之前的段全部删除
+   */
+  long checkpoint(byte[] log, long keepLsn);
 
   void truncate(long x) throws Exception;
 
   /**获取到下一个日志*/
   byte[] next();
 
+  /**上一次next()读出的日志末尾的LSN，与log()的返回值一致*/
+  long readLsn();
+
   /**倒带*/
   void rewind();
 
+  /**
+   * 打开一个独立的读取器，从LSN为lsn的位置所在的段开始读取，用完后需要关闭
+   * lsn所在的段已被删除时从现存的第一段开始
+   */
+  LogReader openReader(long lsn);
+
+  /**
+   * 此后写入文件的日志按LSN顺序交给listener
+   * @return 交给listener的第一条日志开始的LSN，之前的日志都已写入文件
+   */
+  long addListener(LogListener listener);
+
+  void removeListener(LogListener listener);
+
   void close();
 
   public static Logger create(String path) {
+    return create(path, LoggerImpl.SEGMENT_SIZE);
+  }
+
+  public static Logger create(String path, long segmentSize) {
     File f = new File(path + LoggerImpl.LOG_SUFFIX);
     try {
       if (!f.createNewFile()) {
@@ -42,6 +77,12 @@ public interface Logger {
     if (!f.canRead() || !f.canWrite()) {
       Panic.panic(Error.FileCannotRWException);
     }
+    // 第0段不存在时残留的段属于已经删除的日志
+    for (long seq : LoggerImpl.listSegments(path)) {
+      if (seq != 0 && !LoggerImpl.segmentFile(path, seq).delete()) {
+        Panic.panic(Error.FileCannotRWException);
+      }
+    }
 
     FileChannel fc = null;
     RandomAccessFile raf = null;
@@ -52,7 +93,7 @@ public interface Logger {
       Panic.panic(e);
     }
 
-    ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
+    ByteBuffer buf = ByteBuffer.wrap(LoggerImpl.segmentHeader(0));
     try {
       fc.position(0);
       fc.write(buf);
@@ -61,10 +102,14 @@ public interface Logger {
       Panic.panic(e);
     }
 
-    return new LoggerImpl(raf, fc, 0);
+    return new LoggerImpl(path, raf, fc, segmentSize);
   }
 
   public static Logger open(String path) {
+    return open(path, LoggerImpl.SEGMENT_SIZE);
+  }
+
+  public static Logger open(String path, long segmentSize) {
     File f = new File(path + LoggerImpl.LOG_SUFFIX);
     if (!f.exists()) {
       Panic.panic(Error.FileNotExistsException);
@@ -82,7 +127,7 @@ public interface Logger {
       Panic.panic(e);
     }
 
-    LoggerImpl lg = new LoggerImpl(raf, fc);
+    LoggerImpl lg = new LoggerImpl(path, raf, fc, segmentSize);
     lg.init();
 
     return lg;
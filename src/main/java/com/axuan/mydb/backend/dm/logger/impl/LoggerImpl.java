@@ -1,31 +1,66 @@
 package com.axuan.mydb.backend.dm.logger.impl;
 
+import com.axuan.mydb.backend.common.SubArray;
+import com.axuan.mydb.backend.dm.logger.LogListener;
+import com.axuan.mydb.backend.dm.logger.LogReader;
 import com.axuan.mydb.backend.dm.logger.Logger;
 import com.axuan.mydb.backend.utils.Panic;
 import com.axuan.mydb.backend.utils.Parser;
 import com.axuan.mydb.common.Error;
-import com.google.common.primitives.Bytes;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 /**
  * 日志的实现类
  * 负责日志读写
  *
- * 日志的文件标准格式为:
- * [XCheckSum][Log1][Log2]...[LogN][BadTail]
- * XCheckSum 为后续所有日志计算的CheckSum，int类型
+ * 日志按段存放：第0段为path.log，之后的段为path.log.1、path.log.2...
+ * 当前段写满后封存并开始新的段；检查点落盘后删除只包含不再需要的日志的段(第0段只清空)
+ *
+ * 每个段的标准格式为:
+ * [XCheckSum][Magic][StartLsn][Log1][Log2]...[LogN][BadTail]
+ * XCheckSum 为本段所有日志计算的CheckSum，int类型
+ * Magic 标识段的格式版本，最高位为1，不可能是旧格式段中第一条日志的Size
+ * StartLsn 本段第一条日志的LSN，8字节
+ * 旧版本的段只有XCheckSum，起始LSN由前后的段推算
  *
  * 每条正确日志的格式为：
  * [Size][CheckSum][Data]
  * Size 4字节int 标识Data的长度
  * CheckSum 4字节int
  *
+ * 校验值：
+ * 当前版本(CRC_MAGIC)的CheckSum为Data的CRC32，由JVM用硬件指令计算；XCheckSum按日志依次累积每条日志的Size和CheckSum
+ * 之前版本(MAGIC和没有Magic的段)的CheckSum和XCheckSum都是逐字节的多项式，只用于读取
+ * 打开旧版本的日志时，当前段之后的日志写入新版本的段
+ *
+ * 日志缓冲区：
+ * 日志先写入环形缓冲区，写入者用getAndAdd预留空间，得到日志的LSN(日志流中的字节位置，不含段头部，跨越多次打开持续增长)，
+ * 各自并行地把日志拷贝进预留的位置，再在links中以日志起始位置为下标发布日志长度
+ * 抢到drainLock的写入者沿links把已完成的连续日志一次write写入文件，不force，没抢到的直接返回
+ * flush时由一个领头线程写入XCheckSum并force一次，并发等待的线程一起被唤醒
+ * 有监听者时，写入文件的日志在drainLock下按LSN顺序交给监听者
+ *
+ * 读取日志：
+ * 每次从段中读入一大块到可复用的读缓冲区，日志直接在缓冲区中解析和校验，不再每条日志读两次、拷贝多次
+ * 缓冲区放不下一条日志时扩大缓冲区
+ * next()使用日志自身的读取位置，用于恢复；openReader()打开的读取器各有自己的读取位置，
+ * 检查点不删除读取器正在读取的段和之后的段，留到读取器关闭后的检查点再删除
+ *
  * @author axuan
  */
 public class LoggerImpl implements Logger {
@@ -39,169 +74,853 @@ public class LoggerImpl implements Logger {
 
   private static final int OF_DATA = OF_CHECKSUM + 4; // 校验值+size的长度
 
+  public static final int LOG_HEADER_SIZE = OF_DATA; // 每条日志Data之前的长度
+
+  private static final int OF_MAGIC = 4;
+
+  private static final int OF_START_LSN = OF_MAGIC + 4;
+
+  private static final int HEADER_SIZE = OF_START_LSN + 8; // 段头部：XCheckSum、Magic和StartLsn
+
+  private static final int LEGACY_HEADER_SIZE = 4; // 旧格式的段头部只有XCheckSum
+
+  private static final int MAGIC = 0x8D4C4F47; // 多项式校验值的段
+
+  private static final int CRC_MAGIC = 0x8D4C4F48; // CRC32校验值的段
+
+  private static final int VERSION_LEGACY = 0; // 没有Magic的段
+
+  private static final int VERSION_POLY = 1;
+
+  private static final int VERSION_CRC = 2;
+
   public static final String LOG_SUFFIX = ".log";
 
+  public static final long SEGMENT_SIZE = 1L << 24; // 每个段16MB
+
+  private static final int BUFFER_SIZE = 1 << 20; // 日志缓冲区1MB，必须是2的幂
 
-  private RandomAccessFile file;
+  private static final int READ_BUFFER_SIZE = 1 << 20; // 读缓冲区1MB
+
+
+  private String path;
+
+  private long segmentSize;
+
+  private List<Segment> segments; // 现存的段，按段号升序
+
+  private long current; // 当前写入的段号
+
+  private RandomAccessFile file; // 当前段
 
   private FileChannel fc;
 
   private Lock lock;
 
 
-  private long position; // 当前日志指针的位置
+  private SegmentReader cursor; // next()的读取位置
+
+  private List<SegmentReader> readers; // openReader()打开而尚未关闭的读取器，由lock保护
+
+
+  private byte[] ring; // 环形缓冲区，LSN为lsn的字节位于ring[lsn % BUFFER_SIZE]
+
+  // 每条日志至少8字节，以lsn/8为下标不会冲突；写入者拷贝完成后写入日志长度，写入文件后清零
+  private AtomicIntegerArray links;
+
+  private AtomicLong reserved; // 已预留的LSN
+
+  private volatile long written; // 已写入文件(可能还在操作系统缓存中)的LSN
+
+  private volatile long checkpointLsn; // 检查点日志的LSN，写入文件前需要开始新的段
+
+  private Lock drainLock; // 同一时刻只有一个线程把缓冲区写入文件
 
-  private long fileSize; // 初始化时记录，log操作不更新
+  private long writeOffset; // 下一批日志在当前段中的写入位置
 
-  private int xCheckSum; // 用来记录总日志文件的CheckSum
+  private int headerSize; // 当前段头部的长度
 
-  public LoggerImpl(RandomAccessFile file, FileChannel fc) {
+  private int writtenCheckSum; // 当前段写到writeOffset为止的XCheckSum
+
+  private Lock syncLock;
+
+  private Condition changed; // 一批日志写入或落盘完成时通知
+
+  private Condition freed; // 一批日志写入文件、缓冲区空出空间时通知
+
+  private long durable; // 已落盘的LSN
+
+  private boolean syncing; // 是否有线程正在force
+
+  private List<LogListener> listeners;
+
+  public LoggerImpl(String path, RandomAccessFile file, FileChannel fc, long segmentSize) {
+    this.path = path;
     this.file = file;
     this.fc = fc;
+    this.segmentSize = segmentSize;
+    this.segments = new ArrayList<>(Collections.singletonList(new Segment(0, 0, HEADER_SIZE, VERSION_CRC)));
     lock = new ReentrantLock();
+    ring = new byte[BUFFER_SIZE];
+    links = new AtomicIntegerArray(BUFFER_SIZE >>> 3);
+    reserved = new AtomicLong(0);
+    checkpointLsn = -1;
+    drainLock = new ReentrantLock();
+    syncLock = new ReentrantLock();
+    changed = syncLock.newCondition();
+    freed = syncLock.newCondition();
+    listeners = new CopyOnWriteArrayList<>();
+    writeOffset = headerSize = HEADER_SIZE;
+    cursor = new SegmentReader();
+    readers = new ArrayList<>();
   }
 
-  public LoggerImpl(RandomAccessFile file, FileChannel fc, int xCheckSum) {
-    this.file = file;
-    this.fc = fc;
-    this.xCheckSum = xCheckSum;
-    lock = new ReentrantLock();
+  private static class Segment {
+    long seq;
+    long start; // 第一条日志的LSN
+    int headerSize;
+    int version; // 段的格式版本，决定校验值的算法
+    long size; // 打开时的文件长度，用于推算旧格式段的起始LSN
+
+    Segment(long seq, long start, int headerSize, int version) {
+      this.seq = seq;
+      this.start = start;
+      this.headerSize = headerSize;
+      this.version = version;
+    }
   }
 
+  /**
+   * 新的段的头部，XCheckSum为0
+   * @param startLsn 该段第一条日志的LSN
+   * @return
+   */
+  public static byte[] segmentHeader(long startLsn) {
+    byte[] header = new byte[HEADER_SIZE];
+    System.arraycopy(Parser.int2Byte(CRC_MAGIC), 0, header, OF_MAGIC, 4);
+    System.arraycopy(Parser.long2Byte(startLsn), 0, header, OF_START_LSN, 8);
+    return header;
+  }
+
+  public static File segmentFile(String path, long seq) {
+    return new File(seq == 0 ? path + LOG_SUFFIX : path + LOG_SUFFIX + "." + seq);
+  }
+
+  /**
+   * 找出path现存的所有段，第0段总是存在
+   * @param path
+   * @return
+   */
+  public static List<Long> listSegments(String path) {
+    List<Long> res = new ArrayList<>();
+    res.add(0L);
+    File base = segmentFile(path, 0).getAbsoluteFile();
+    String prefix = base.getName() + ".";
+    String[] names = base.getParentFile().list();
+    if (names == null) {
+      return res;
+    }
+    for (String name : names) {
+      if (!name.startsWith(prefix)) {
+        continue;
+      }
+      try {
+        long seq = Long.parseLong(name.substring(prefix.length()));
+        if (seq > 0) {
+          res.add(seq);
+        }
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    Collections.sort(res);
+    return res;
+  }
+
+  /**
+   * 打开已有的日志，只检查最后一段的尾部，之前的段在封存时已经落盘
+   */
   public void init() {
-    long size = 0;
-    try {
-      size = file.length();
-    } catch (IOException e) {
-      Panic.panic(e);
+    segments = new ArrayList<>();
+    for (long seq : listSegments(path)) {
+      segments.add(readSegment(seq));
     }
-    if (size < 4) {
-      Panic.panic(Error.BadXidFileException);
+    inferLegacyStarts();
+    Segment seg = segments.get(segments.size() - 1);
+    long last = seg.seq;
+    if (last != 0) {
+      try {
+        fc.close();
+        file.close();
+        file = new RandomAccessFile(segmentFile(path, last), "rw");
+        fc = file.getChannel();
+      } catch (IOException e) {
+        Panic.panic(e);
+      }
+    }
+    current = last;
+    headerSize = seg.headerSize;
+    if (seg.size < headerSize) {
+      Panic.panic(Error.BadLogFileException);
     }
 
-    ByteBuffer raw = ByteBuffer.allocate(4);
-    try {
-      fc.position(0);
-      fc.read(raw);
+    checkAndRemoveTail();
+    // LSN从上次打开时日志的末尾继续增长
+    long end = seg.start + writeOffset - headerSize;
+    reserved.set(end);
+    written = end;
+    durable = end;
+    if (seg.version != VERSION_CRC) {
+      // 旧版本的段不再追加，之后的日志写入新版本的段
+      rotate(end);
+    }
+  }
+
+  /**
+   * 读出段的头部
+   * @param seq
+   * @return
+   */
+  private Segment readSegment(long seq) {
+    ByteBuffer raw = ByteBuffer.allocate(HEADER_SIZE);
+    long size = 0;
+    try (RandomAccessFile raf = new RandomAccessFile(segmentFile(path, seq), "r")) {
+      size = raf.length();
+      FileChannel ch = raf.getChannel();
+      while (raw.hasRemaining() && ch.read(raw, raw.position()) > 0) {
+      }
     } catch (IOException e) {
       Panic.panic(e);
     }
-    int xCheckSum = Parser.parseInt(raw.array());
-    this.fileSize = size;
-    this.xCheckSum = xCheckSum;
+    byte[] header = raw.array();
+    Segment seg;
+    int magic = size >= HEADER_SIZE ? Parser.parseInt(Arrays.copyOfRange(header, OF_MAGIC, OF_START_LSN)) : 0;
+    if (magic == MAGIC || magic == CRC_MAGIC) {
+      seg = new Segment(seq, Parser.parseLong(Arrays.copyOfRange(header, OF_START_LSN, HEADER_SIZE)), HEADER_SIZE,
+          magic == CRC_MAGIC ? VERSION_CRC : VERSION_POLY);
+    } else {
+      seg = new Segment(seq, -1, LEGACY_HEADER_SIZE, VERSION_LEGACY);
+    }
+    seg.size = size;
+    return seg;
+  }
 
-    checkAndRemoveTail();
+  /**
+   * 旧格式的段没有记录起始LSN，它们总在新格式的段之前：
+   * 之后有新格式的段时从它倒推，否则从0开始顺推，每次打开推算出的LSN都相同
+   */
+  private void inferLegacyStarts() {
+    int first = 0;
+    while (first < segments.size() && segments.get(first).start < 0) {
+      first++;
+    }
+    if (first < segments.size()) {
+      for (int i = first - 1; i >= 0; i--) {
+        Segment seg = segments.get(i);
+        seg.start = segments.get(i + 1).start - (seg.size - seg.headerSize);
+      }
+    } else {
+      long start = 0;
+      for (Segment seg : segments) {
+        seg.start = start;
+        start += seg.size - seg.headerSize;
+      }
+    }
   }
 
 
   // 可能写日志过程中，突然宕机，写入了一半日志，因此就是一个坏的日志文件，因此需要去除这个文件，保证数据的一致性
   // 检查并移除bad tail
   private void checkAndRemoveTail() {
-    rewind();
+    ByteBuffer raw = ByteBuffer.allocate(4);
+    try {
+      fc.read(raw, 0);
+    } catch (IOException e) {
+      Panic.panic(e);
+    }
+    int xCheckSum = Parser.parseInt(raw.array());
 
+    Segment last = segments.get(segments.size() - 1);
+    cursor.start(last);
+    boolean crc = last.version == VERSION_CRC;
     int xCheck = 0;
     while (true) {
-      byte[] log = internNext();
+      SubArray log = cursor.readRecord();
       if (log == null) break;
-      xCheck = calCheckSum(xCheck, log);
+      if (crc) {
+        xCheck = calXCheckSum(xCheck, log.end - log.start - OF_DATA, cursor.readBuf.getInt(log.start + OF_CHECKSUM));
+      } else {
+        xCheck = calCheckSum(xCheck, log.raw, log.start, log.end);
+      }
     }
     if (xCheck != xCheckSum) {
-      Panic.panic(Error.BadXidFileException);
+      // 崩溃发生在一批日志写入之后、XCheckSum落盘之前，每条日志都有自己的校验值，以逐条校验通过的日志为准
+      writeXCheckSum(fc, xCheck);
     }
 
     try {
-      truncate(position); // 截断后面的坏的日志
+      truncate(cursor.position); // 截断后面的坏的日志
     } catch (Exception e) {
       Panic.panic(e);
     }
-    try {
-      file.seek(position);
-    } catch (IOException e) {
-      Panic.panic(e);
-    }
+    writeOffset = cursor.position;
+    writtenCheckSum = xCheck;
     rewind();
   }
 
 
-  private int calCheckSum(int xCheck, byte[] log) {
-    for (byte b : log) {
-      xCheck = xCheck * SEED + b;
+  /**
+   * 旧版本的逐字节多项式校验值
+   */
+  private int calCheckSum(int xCheck, byte[] raw, int start, int end) {
+    for (int i = start; i < end; i++) {
+      xCheck = xCheck * SEED + raw[i];
     }
     return xCheck;
   }
 
-  private byte[] internNext() {
-    // 这个position是应该从第一条日志，也就是position=4的时候开始计算,在rewind()方法中验证了这一点
-    if (position + OF_DATA >= fileSize) {
-      return null;
+  /**
+   * 日志Data的CRC32
+   */
+  private static int calCrc(byte[] raw, int start, int end) {
+    CRC32 crc = new CRC32();
+    crc.update(raw, start, end - start);
+    return (int)crc.getValue();
+  }
+
+  /**
+   * 把一条日志累积进当前版本的XCheckSum
+   * @param size 日志Data的长度
+   * @param checkSum 日志的CheckSum
+   */
+  private static int calXCheckSum(int xCheck, int size, int checkSum) {
+    return (xCheck * SEED + size) * SEED + checkSum;
+  }
+
+  /**
+   * segments中段号大于seg的第一段，需要持有lock
+   * @param seg 为null时返回第一段
+   * @return 没有下一段时返回null
+   */
+  private Segment nextSegment(Segment seg) {
+    for (Segment s : segments) {
+      if (seg == null || s.seq > seg.seq) {
+        return s;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 日志的一个读取位置，有自己的读取通道和读缓冲区
+   * 读完一段后按段号找下一段，检查点替换segments之后也能接着读取
+   */
+  private class SegmentReader implements LogReader {
+
+    private Segment seg; // 正在读取的段，null表示还没有开始读取；由lock保护，检查点据此保留段
+
+    private FileChannel readFc;
+
+    private long position; // 当前日志指针在段中的位置
+
+    private long readSize; // 读取该段时的段长度，读到末尾时重新获取
+
+    private ByteBuffer readBuf; // 读缓冲区，保存段中从readBufStart开始的readBuf.limit()个字节
+
+    private long readBufStart;
+
+    /**
+     * 读取下一条日志，当前段读完后接着读下一段
+     * 某一段中间出现坏的日志时，之后的段也不再读取
+     * @return 读缓冲区中的整条日志，下一次读取之前有效
+     */
+    private SubArray internNext() {
+      while (true) {
+        SubArray log = readRecord();
+        if (log != null) {
+          return log;
+        }
+        if (readFc != null) {
+          if (position != readSize) {
+            return null;
+          }
+          if (grown()) {
+            continue; // 开始读取之后该段又写入了日志
+          }
+        }
+        lock.lock();
+        try {
+          Segment next = nextSegment(seg);
+          if (next == null) {
+            return null;
+          }
+          start(next);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+
+    /**
+     * 从段的第一条日志开始读取，需要持有lock
+     */
+    private void start(Segment s) {
+      closeChannel();
+      seg = s;
+      try {
+        readFc = new RandomAccessFile(segmentFile(path, s.seq), "r").getChannel();
+        readSize = readFc.size();
+      } catch (IOException e) {
+        Panic.panic(e);
+      }
+      position = s.headerSize;
+    }
+
+    private boolean grown() {
+      try {
+        long size = readFc.size();
+        if (size > readSize) {
+          readSize = size;
+          return true;
+        }
+      } catch (IOException e) {
+        Panic.panic(e);
+      }
+      return false;
+    }
+
+    /**
+     * 回到开始读取之前，需要持有lock
+     */
+    private void reset() {
+      closeChannel();
+      seg = null;
+      position = readSize = 0;
+    }
+
+    private void closeChannel() {
+      if (readBuf != null) {
+        readBuf.limit(0);
+      }
+      if (readFc != null) {
+        try {
+          readFc.close();
+        } catch (IOException e) {
+          Panic.panic(e);
+        }
+      }
+      readFc = null;
+    }
+
+    /**
+     * 在读缓冲区中解析当前位置的日志，校验通过后前移position
+     * @return 读缓冲区中的整条日志[Size][CheckSum][Data]，下一次读取之前有效
+     */
+    private SubArray readRecord() {
+      // 这个position是应该从每段的第一条日志，也就是段头部之后开始计算
+      if (readFc == null || position + OF_DATA >= readSize) {
+        return null;
+      }
+      // 读取size
+      if (!fill(position, OF_DATA)) {
+        return null;
+      }
+      int start = (int)(position - readBufStart);
+      int size = readBuf.getInt(start + OF_SIZE);
+      if (size < 0 || position + size + OF_DATA > readSize) {
+        return null;
+      }
+      if (!fill(position, OF_DATA + size)) {
+        return null;
+      }
+      start = (int)(position - readBufStart);
+      byte[] raw = readBuf.array();
+      int checkSum1 = seg.version == VERSION_CRC
+          ? calCrc(raw, start + OF_DATA, start + OF_DATA + size)
+          : calCheckSum(0, raw, start + OF_DATA, start + OF_DATA + size); // 根据data计算出校验值
+      int checkSum2 = readBuf.getInt(start + OF_CHECKSUM); // 再取出日志中的校验值
+      if (checkSum1 != checkSum2) {
+        return null;
+      }
+      position += OF_DATA + size;
+      return new SubArray(raw, start, start + OF_DATA + size);
+    }
+
+    /**
+     * 保证段中[offset, offset + length)在读缓冲区中，不在时从offset开始一次读入尽量多的字节
+     * @return 段在readSize之内不足length个字节时返回false
+     */
+    private boolean fill(long offset, int length) {
+      if (readBuf != null && offset >= readBufStart && offset + length <= readBufStart + readBuf.limit()) {
+        return true;
+      }
+      if (offset + length > readSize) {
+        return false;
+      }
+      if (readBuf == null || readBuf.capacity() < length) {
+        readBuf = ByteBuffer.allocate(Math.max(length, READ_BUFFER_SIZE));
+      }
+      readBuf.clear();
+      readBuf.limit((int)Math.min(readBuf.capacity(), readSize - offset));
+      readBufStart = offset;
+      try {
+        while (readBuf.position() < length) {
+          if (readFc.read(readBuf, offset + readBuf.position()) < 0) {
+            break;
+          }
+        }
+      } catch (IOException e) {
+        Panic.panic(e);
+      }
+      readBuf.limit(readBuf.position());
+      return readBuf.limit() >= length;
+    }
+
+    @Override
+    public byte[] next() {
+      SubArray log = internNext();
+      if (log == null) return null;
+      return Arrays.copyOfRange(log.raw, log.start + OF_DATA, log.end);
+    }
+
+    @Override
+    public long readLsn() {
+      return seg.start + position - seg.headerSize;
+    }
+
+    @Override
+    public void close() {
+      lock.lock();
+      try {
+        closeChannel();
+        readers.remove(this);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+
+  @Override
+  public long log(byte[] data) {
+    return append(data, -1);
+  }
+
+  @Override
+  public long tail() {
+    return reserved.get();
+  }
+
+  /**
+   * 预留空间并把日志拷贝进缓冲区，不持有任何锁
+   * @param data
+   * @param keepLsn 检查点日志需要保留的LSN，普通日志为-1
+   * @return 日志末尾的LSN
+   */
+  private long append(byte[] data, long keepLsn) {
+    int length = OF_DATA + data.length;
+    if (length > BUFFER_SIZE) {
+      Panic.panic(Error.DataToolLargeException);
+    }
+    long lsn = reserved.getAndAdd(length);
+    // 缓冲区中还没写入文件的日志占满了空间，等待写入，不空转
+    while (lsn + length - written > BUFFER_SIZE) {
+      tryDrain();
+      syncLock.lock();
+      try {
+        if (lsn + length - written > BUFFER_SIZE) {
+          freed.awaitUninterruptibly();
+        }
+      } finally {
+        syncLock.unlock();
+      }
+    }
+    byte[] header = new byte[OF_DATA];
+    System.arraycopy(Parser.int2Byte(data.length), 0, header, OF_SIZE, 4);
+    System.arraycopy(Parser.int2Byte(calCrc(data, 0, data.length)), 0, header, OF_CHECKSUM, 4);
+    put(lsn, header);
+    put(lsn + OF_DATA, data);
+    if (keepLsn >= lsn) {
+      // 之前的日志都不再需要，检查点日志开始新的段，之前的段可以全部删除
+      checkpointLsn = lsn;
+    }
+    links.set(slot(lsn), length);
+    tryDrain();
+    return lsn + length;
+  }
+
+  private int index(long lsn) {
+    return (int)(lsn & (BUFFER_SIZE - 1));
+  }
+
+  private int slot(long lsn) {
+    return (int)((lsn >>> 3) & (links.length() - 1));
+  }
+
+  private int ringInt(long lsn) {
+    int res = 0;
+    for (int i = 0; i < 4; i++) {
+      res = (res << 8) | (ring[index(lsn + i)] & 0xFF);
+    }
+    return res;
+  }
+
+  private byte[] get(long lsn, int length) {
+    byte[] dst = new byte[length];
+    int i = index(lsn);
+    int first = Math.min(length, BUFFER_SIZE - i);
+    System.arraycopy(ring, i, dst, 0, first);
+    if (first < length) {
+      System.arraycopy(ring, 0, dst, first, length - first);
+    }
+    return dst;
+  }
+
+  private void put(long lsn, byte[] src) {
+    int i = index(lsn);
+    int first = Math.min(src.length, BUFFER_SIZE - i);
+    System.arraycopy(src, 0, ring, i, first);
+    if (first < src.length) {
+      System.arraycopy(src, first, ring, 0, src.length - first);
     }
-    // 读取size
-    ByteBuffer tmp = ByteBuffer.allocate(4);
+  }
+
+  /**
+   * 抢到drainLock时把已完成的日志写入文件，否则直接返回，由持有者写入
+   * 释放drainLock之后其他线程可能刚发布了日志而没抢到锁，需要再检查一次
+   */
+  private void tryDrain() {
+    while (drainLock.tryLock()) {
+      try {
+        drainCompleted();
+      } finally {
+        drainLock.unlock();
+      }
+      if (links.get(slot(written)) == 0) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * 从written开始沿links找出已完成的连续日志，一次write写入文件，需要持有drainLock
+   */
+  private void drainCompleted() {
+    long start = written;
+    long end = start;
+    int checkSum = writtenCheckSum;
+    while (true) {
+      int length = links.get(slot(end));
+      if (length == 0) {
+        break;
+      }
+      long segEnd = writeOffset + (end - start);
+      boolean cp = end == checkpointLsn;
+      if (cp || (segEnd > headerSize && segEnd + length > segmentSize)) {
+        if (end > start) {
+          writeRegion(start, end, checkSum);
+          start = end;
+        }
+        rotate(end);
+        checkSum = 0;
+      }
+      checkSum = calXCheckSum(checkSum, length - OF_DATA, ringInt(end + OF_CHECKSUM));
+      if (!listeners.isEmpty()) {
+        byte[] data = get(end + OF_DATA, length - OF_DATA);
+        for (LogListener listener : listeners) {
+          listener.logged(end + length, data);
+        }
+      }
+      links.set(slot(end), 0);
+      end += length;
+    }
+    if (end > start) {
+      writeRegion(start, end, checkSum);
+    }
+  }
+
+  /**
+   * 把缓冲区中[start, end)写入当前段，写完后空间可以被重新预留
+   */
+  private void writeRegion(long start, long end, int checkSum) {
+    int i = index(start);
+    int length = (int)(end - start);
+    int first = Math.min(length, BUFFER_SIZE - i);
     try {
-      fc.position(position);
-      fc.read(tmp);
+      write(ByteBuffer.wrap(ring, i, first), writeOffset);
+      if (first < length) {
+        write(ByteBuffer.wrap(ring, 0, length - first), writeOffset + first);
+      }
     } catch (IOException e) {
       Panic.panic(e);
     }
-    int size = Parser.parseInt(tmp.array());
-    if (position + size + OF_DATA > fileSize) {
-      return null;
+    writeOffset += length;
+    syncLock.lock();
+    try {
+      written = end;
+      writtenCheckSum = checkSum;
+      changed.signalAll();
+      freed.signalAll();
+    } finally {
+      syncLock.unlock();
+    }
+  }
+
+  private void write(ByteBuffer buf, long offset) throws IOException {
+    write(fc, buf, offset);
+  }
+
+  private static void write(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+    while (buf.hasRemaining()) {
+      offset += ch.write(buf, offset);
     }
-    ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+  }
+
+  /**
+   * 封存当前段并开始新的段，需要持有drainLock
+   * 封存时当前段写入最终的XCheckSum并落盘，之前写入的日志随之全部落盘
+   * @param startLsn 新的段第一条日志的LSN
+   */
+  private void rotate(long startLsn) {
+    syncLock.lock();
     try {
-      fc.position(position);
-      fc.read(buf);
+      while (syncing) {
+        changed.awaitUninterruptibly();
+      }
+      writeXCheckSum(fc, writtenCheckSum);
+      durable = Math.max(durable, written);
+
+      long seq = current + 1;
+      File f = segmentFile(path, seq);
+      if (!f.createNewFile()) {
+        Panic.panic(Error.FileExistsException);
+      }
+      RandomAccessFile raf = new RandomAccessFile(f, "rw");
+      FileChannel ch = raf.getChannel();
+      write(ch, ByteBuffer.wrap(segmentHeader(startLsn)), 0);
+      ch.force(false);
+      lock.lock();
+      try {
+        fc.close();
+        file.close();
+        file = raf;
+        fc = ch;
+        current = seq;
+        segments.add(new Segment(seq, startLsn, HEADER_SIZE, VERSION_CRC));
+      } finally {
+        lock.unlock();
+      }
+      writeOffset = headerSize = HEADER_SIZE;
+      writtenCheckSum = 0;
+      changed.signalAll();
     } catch (IOException e) {
       Panic.panic(e);
+    } finally {
+      syncLock.unlock();
     }
+  }
 
-    byte[] log = buf.array();
-    int checkSum1 = calCheckSum(0, Arrays.copyOfRange(log, OF_DATA, log.length)); // 根据data计算出校验值
-    int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA)); // 再取出日志中的校验值
-    if (checkSum1 != checkSum2) {
-      return null;
-    }
-    position += log.length;
-    return log;
+  @Override
+  public void flush() {
+    flush(reserved.get());
   }
 
+  /**
+   * 没有线程在force时，当前线程成为领头线程，写入XCheckSum后force一次，此前写入的所有日志一起落盘；
+   * 否则等待领头线程完成，同时等待的线程一起被唤醒
+   */
+  @Override
+  public void flush(long lsn) {
+    while (true) {
+      if (written < lsn) {
+        tryDrain();
+      }
+      syncLock.lock();
+      try {
+        if (durable >= lsn) {
+          return;
+        }
+        if (written < lsn || syncing) {
+          // lsn之前还有日志正在拷贝或写入，由发布它们的线程写入后通知
+          changed.awaitUninterruptibly();
+          continue;
+        }
+        syncing = true;
+        long end = written;
+        FileChannel ch = fc;
+        int checkSum = writtenCheckSum;
+        syncLock.unlock();
+        try {
+          writeXCheckSum(ch, checkSum);
+        } finally {
+          syncLock.lock();
+          durable = Math.max(durable, end);
+          syncing = false;
+          changed.signalAll();
+        }
+      } finally {
+        syncLock.unlock();
+      }
+    }
+  }
 
+  /**
+   * 写入检查点日志，落盘后删除末尾不超过keepLsn的段
+   * 段的末尾即下一段的起始LSN，当前段总是保留
+   */
   @Override
-  public void log(byte[] data) {
-    byte[] log = wrap(data);
-    ByteBuffer buf = ByteBuffer.wrap(log);
+  public long checkpoint(byte[] data, long keepLsn) {
+    long end = append(data, keepLsn);
+    flush(end);
+    syncLock.lock();
     lock.lock();
     try {
-      fc.position(fc.size());
-      fc.write(buf);
+      cursor.reset();
+      long pinned = Long.MAX_VALUE; // 读取器正在读取的最小段号
+      for (SegmentReader reader : readers) {
+        pinned = Math.min(pinned, reader.seg.seq);
+      }
+      List<Segment> remain = new ArrayList<>();
+      for (int i = 0; i < segments.size(); i++) {
+        Segment seg = segments.get(i);
+        if (i == segments.size() - 1 || segments.get(i + 1).start > keepLsn || seg.seq >= pinned) {
+          remain.add(seg);
+        } else if (seg.seq == 0) {
+          // 第0段标识日志的存在，只清空
+          try (RandomAccessFile raf = new RandomAccessFile(segmentFile(path, 0), "rw")) {
+            if (raf.length() > seg.headerSize) {
+              raf.getChannel().truncate(seg.headerSize);
+              writeXCheckSum(raf.getChannel(), 0);
+            }
+          }
+          remain.add(seg);
+        } else if (!segmentFile(path, seg.seq).delete()) {
+          Panic.panic(Error.FileCannotRWException);
+        }
+      }
+      segments = remain;
     } catch (IOException e) {
       Panic.panic(e);
     } finally {
       lock.unlock();
+      syncLock.unlock();
     }
-    updateXCheckSum(log);
+    return end;
   }
 
-  /**
-   * 更新总的日志文件的checkSum
-   * @param log
-   */
-  private void updateXCheckSum(byte[] log) {
-    this.xCheckSum = calCheckSum(this.xCheckSum, log);
+  private void writeXCheckSum(FileChannel ch, int xCheckSum) {
     try {
-      fc.position(0);
-      fc.write(ByteBuffer.wrap(Parser.int2Byte(xCheckSum)));
+      ch.write(ByteBuffer.wrap(Parser.int2Byte(xCheckSum)), 0);
+      ch.force(false);
     } catch (IOException e) {
       Panic.panic(e);
     }
   }
 
-  private byte[] wrap(byte[] data) {
-    byte[] checkSum = Parser.int2Byte(calCheckSum(0, data));
-    byte[] size = Parser.int2Byte(data.length);
-    return Bytes.concat(size, checkSum, data);
-  }
-
+  /**
+   * 截断当前段
+   * @param x
+   * @throws Exception
+   */
   @Override
   public void truncate(long x) throws Exception {
     lock.lock();
@@ -216,13 +935,21 @@ public class LoggerImpl implements Logger {
    * 获得下一个日志的数据
    * @return
    */
+  @Override
+  public long readLsn() {
+    lock.lock();
+    try {
+      return cursor.readLsn();
+    } finally {
+      lock.unlock();
+    }
+  }
+
   @Override
   public byte[] next() {
     lock.lock();
     try {
-      byte[] log = internNext();
-      if (log == null) return null;
-      return Arrays.copyOfRange(log, OF_DATA, log.length);
+      return cursor.next();
     } finally {
       lock.unlock();
     }
@@ -230,11 +957,56 @@ public class LoggerImpl implements Logger {
 
   @Override
   public void rewind() {
-    position = 4;
+    lock.lock();
+    try {
+      cursor.reset();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 从起始LSN不超过lsn的最后一段开始，登记之后检查点不再删除它
+   */
+  @Override
+  public LogReader openReader(long lsn) {
+    lock.lock();
+    try {
+      Segment first = segments.get(0);
+      for (Segment seg : segments) {
+        if (seg.start <= lsn) {
+          first = seg;
+        }
+      }
+      SegmentReader reader = new SegmentReader();
+      reader.start(first);
+      readers.add(reader);
+      return reader;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long addListener(LogListener listener) {
+    drainLock.lock();
+    try {
+      listeners.add(listener);
+      return written;
+    } finally {
+      drainLock.unlock();
+    }
+  }
+
+  @Override
+  public void removeListener(LogListener listener) {
+    listeners.remove(listener);
   }
 
   @Override
   public void close() {
+    flush();
+    rewind();
     try {
       fc.close();
       file.close();
@@ -1,6 +1,7 @@
 package com.axuan.mydb.backend.dm.page;
 
 import com.axuan.mydb.backend.dm.pageCache.PageCache;
+import com.axuan.mydb.backend.utils.Parser;
 import com.axuan.mydb.backend.utils.RandomUtil;
 import java.util.Arrays;
 
@@ -9,6 +10,7 @@ import java.util.Arrays;
  * ValidCheck
  * db启动时给100～107字节处填入一个随机字节，db关闭时将其拷贝到108～115字节
  * 用于判断上一次数据库是否正常关闭
+ * 116～119字节记录页面大小，创建数据库时写入，之后不再改变；旧的数据库文件中为0，表示默认的页面大小
  * @author axuan
  */
 public class PageOne {
@@ -17,12 +19,27 @@ public class PageOne {
 
   private static final int LEN_VC = 8; // 校验值的长度
 
-  public static byte[] InitRaw() {
-    byte[] raw = new byte[PageCache.PAGE_SIZE];
+  private static final int OF_PAGE_SIZE = OF_VC + 2 * LEN_VC; // 页面大小的offset
+
+  public static final int HEADER_SIZE = OF_PAGE_SIZE + 4; // 打开数据库时需要预先读出的第一页的长度
+
+  public static byte[] InitRaw(int pageSize) {
+    byte[] raw = new byte[pageSize];
     setVcOpen(raw);
+    System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
     return raw;
   }
 
+  /**
+   * 从第一页的头部解析出页面大小
+   * @param header 第一页的前HEADER_SIZE个字节
+   * @return
+   */
+  public static int parsePageSize(byte[] header) {
+    int pageSize = Parser.parseInt(Arrays.copyOfRange(header, OF_PAGE_SIZE, OF_PAGE_SIZE + 4));
+    return pageSize == 0 ? PageCache.PAGE_SIZE : pageSize;
+  }
+
 
 
   public static void setVcOpen(Page pg) {
@@ -1,26 +1,40 @@
 package com.axuan.mydb.backend.dm.page;
 
-import com.axuan.mydb.backend.dm.pageCache.PageCache;
 import com.axuan.mydb.backend.utils.Parser;
 import java.util.Arrays;
 
 /**
  * PageX管理普通页
  * 普通页结构
- * [FreeSpaceOffset][Data] ----> 这里Data应该对应的是dataItem的数据结构
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * [FreeSpaceOffset][PageLSN][Data] ----> 这里Data应该对应的是dataItem的数据结构
+ * FreeSpaceOffset: 2字节 空闲位置开始偏移，最高位为1表示页面带有PageLSN
+ * PageLSN: 8字节 最后一条修改该页面的日志末尾的LSN，恢复时LSN不超过它的日志已经反映在页面中
+ * 旧版本创建的页面和崩溃后全0的页面没有PageLSN：
+ * [FreeSpaceOffset][Data]
+ * FreeSpaceOffset按无符号数解释，页面满时可以等于32k，这样的页面恢复时总是redo
+ * 页面大小即页面数据的长度
  * @author axuan
  */
 public class PageX {
   private static final short OF_FREE = 0;
 
-  private static final short OF_DATA = 2;
+  private static final short OF_LSN = 2;
 
-  public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+  private static final short OF_DATA = OF_LSN + 8;
 
-  public static byte[] initRaw() {
-    byte[] raw = new byte[PageCache.PAGE_SIZE];
-    setFSO(raw, OF_DATA);
+  private static final short OF_LEGACY_DATA = 2; // 没有PageLSN的页面的数据起始位置
+
+  private static final int LSN_FLAG = 0x8000;
+
+  private static final int MAX_FSO = 0x7FFF; // 带PageLSN的页面，空闲位置偏移不能用到最高位
+
+  public static int maxFreeSpace(int pageSize) {
+    return Math.min(pageSize, MAX_FSO) - OF_DATA;
+  }
+
+  public static byte[] initRaw(int pageSize) {
+    byte[] raw = new byte[pageSize];
+    setFSO(raw, OF_DATA, true);
     return raw;
   }
 
@@ -29,9 +43,48 @@ public class PageX {
    * 设置空闲位置的偏移量
    * @param raw
    * @param ofData
+   * @param hasLsn 页面是否带有PageLSN
    */
-  private static void setFSO(byte[] raw, short ofData) {
-    System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+  private static void setFSO(byte[] raw, int ofData, boolean hasLsn) {
+    int fso = hasLsn ? ofData | LSN_FLAG : ofData;
+    System.arraycopy(Parser.short2Byte((short)fso), 0, raw, OF_FREE, 2);
+  }
+
+  private static boolean hasLsn(byte[] raw) {
+    int fso = Parser.parseShort(Arrays.copyOfRange(raw, OF_FREE, OF_FREE + 2)) & 0xFFFF;
+    // 旧页面写满32k时FreeSpaceOffset也是0x8000，但低15位为0
+    return (fso & LSN_FLAG) != 0 && (fso & MAX_FSO) != 0;
+  }
+
+  /**
+   * 获得页面的PageLSN，没有PageLSN的页面返回0
+   * @param pg
+   * @return
+   */
+  public static long getPageLsn(Page pg) {
+    byte[] raw = pg.getData();
+    if (!hasLsn(raw)) {
+      return 0;
+    }
+    return Parser.parseLong(Arrays.copyOfRange(raw, OF_LSN, OF_DATA));
+  }
+
+  /**
+   * 修改页面并写入日志之后调用，PageLSN只会增大
+   * 同一页面上不同DataItem的修改可能并发，需要持有页面的锁
+   * @param pg
+   * @param lsn 日志末尾的LSN
+   */
+  public static void setPageLsn(Page pg, long lsn) {
+    pg.lock();
+    try {
+      byte[] raw = pg.getData();
+      if (hasLsn(raw) && lsn > getPageLsn(pg)) {
+        System.arraycopy(Parser.long2Byte(lsn), 0, raw, OF_LSN, 8);
+      }
+    } finally {
+      pg.unlock();
+    }
   }
 
   /**
@@ -40,11 +93,16 @@ public class PageX {
    * @return
    */
   public static short getFSO(Page pg) {
-    return getFSO(pg.getData());
+    return (short)getFSO(pg.getData());
   }
 
-  private static short getFSO(byte[] raw) {
-    return Parser.parseShort(Arrays.copyOfRange(raw, OF_FREE, OF_DATA));
+  private static int getFSO(byte[] raw) {
+    int fso = Parser.parseShort(Arrays.copyOfRange(raw, OF_FREE, OF_FREE + 2)) & 0xFFFF;
+    if (fso == 0) {
+      // 全0的页面是预分配后崩溃前没来得及写入的新页面，视为没有PageLSN的空页
+      return OF_LEGACY_DATA;
+    }
+    return hasLsn(raw) ? fso & MAX_FSO : fso;
   }
 
   /**
@@ -53,7 +111,9 @@ public class PageX {
    * @return
    */
   public static int getFreeSpace(Page pg) {
-    return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+    byte[] raw = pg.getData();
+    int limit = hasLsn(raw) ? Math.min(raw.length, MAX_FSO) : raw.length;
+    return limit - getFSO(raw);
   }
 
 
@@ -65,10 +125,10 @@ public class PageX {
    */
   public static short insert(Page pg, byte[] raw) {
     pg.setDirty(true);
-    short offset = getFSO(pg.getData());
+    int offset = getFSO(pg.getData());
     System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-    setFSO(pg.getData(), (short) (offset + raw.length));
-    return offset;
+    setFSO(pg.getData(), offset + raw.length, hasLsn(pg.getData()));
+    return (short)offset;
   }
 
 
@@ -83,11 +143,12 @@ public class PageX {
    */
   public static void recoverInsert(Page pg, byte[] raw, short offset) {
     pg.setDirty(true);
+    boolean hasLsn = hasLsn(pg.getData());
     System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
 
-    short rawFSO = getFSO(pg.getData());
+    int rawFSO = getFSO(pg.getData());
     if (rawFSO < offset + raw.length) {
-      setFSO(pg.getData(), (short) (offset + raw.length));
+      setFSO(pg.getData(), offset + raw.length, hasLsn);
     }
   }
 
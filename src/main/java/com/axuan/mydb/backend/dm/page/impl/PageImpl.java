@@ -16,7 +16,7 @@ public class PageImpl implements Page{
 
   private byte[] data;
 
-  private boolean dirty;
+  private volatile boolean dirty;
 
   private Lock lock;
 
@@ -49,7 +49,11 @@ public class PageImpl implements Page{
 
   @Override
   public void setDirty(boolean dirty) {
+    boolean wasDirty = this.dirty;
     this.dirty = dirty;
+    if (dirty && !wasDirty && pc != null) {
+      pc.markDirty(this);
+    }
   }
 
   @Override
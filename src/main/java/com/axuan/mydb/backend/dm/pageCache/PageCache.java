@@ -1,13 +1,20 @@
 package com.axuan.mydb.backend.dm.pageCache;
 
+import com.axuan.mydb.backend.dm.logger.Logger;
 import com.axuan.mydb.backend.dm.page.Page;
+import com.axuan.mydb.backend.dm.page.PageOne;
+import com.axuan.mydb.backend.dm.pageCache.impl.CompressedPageCacheImpl;
+import com.axuan.mydb.backend.dm.pageCache.impl.MappedPageCacheImpl;
 import com.axuan.mydb.backend.dm.pageCache.impl.PageCacheImpl;
 import com.axuan.mydb.backend.utils.Panic;
 import com.axuan.mydb.common.Error;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Map;
 
 /**
  * 页面缓存
@@ -17,6 +24,10 @@ public interface PageCache {
 
   public static final int PAGE_SIZE = 1 << 13;  // 默认页面大小为8k
 
+  public static final int MIN_PAGE_SIZE = 1 << 12; // 4k
+
+  public static final int MAX_PAGE_SIZE = 1 << 15; // 32k，页内偏移量只有2字节
+
   /**新建页面*/
   int newPage(byte[] initData);
   /**根据页号获取页面*/
@@ -33,8 +44,32 @@ public interface PageCache {
   int getPageNumber();
   /**刷回Page*/
   void flushPage(Page pg);
+  /**页面变为脏页时调用，用于后台刷盘，并以日志当前的末尾作为该页的recLSN记入脏页表*/
+  void markDirty(Page pg);
+  /**恢复时页面被日志修改，recLSN之后的日志描述的修改可能还没有落盘*/
+  void markDirty(Page pg, long recLsn);
+  /**脏页表：页号到recLSN，已写回而没有落盘的页面先落盘*/
+  Map<Integer, Long> dirtyPageTable();
+  /**提示即将访问该页面，异步读入缓存*/
+  void prefetch(int pgNo);
+  /**获取页面大小*/
+  int getPageSize();
+  /**设置日志，写回页面之前先等待日志落盘*/
+  void setLogger(Logger logger);
 
   public static PageCacheImpl create(String path, long memory) {
+    return create(path, PageCacheOptions.newOptions(memory));
+  }
+
+  public static PageCacheImpl create(String path, PageCacheOptions options) {
+    if (!validPageSize(options.pageSize)) {
+      Panic.panic(Error.InvalidPageSizeException);
+    }
+    // 残留的页面映射文件会让数据库被当作压缩模式打开
+    File mf = new File(path + CompressedPageCacheImpl.MAP_SUFFIX);
+    if (mf.exists()) {
+      Panic.panic(Error.FileExistsException);
+    }
     File f = new File(path + PageCacheImpl.DB_SUFFIX);
     try {
       if (!f.createNewFile()) {
@@ -55,11 +90,15 @@ public interface PageCache {
     } catch (FileNotFoundException e) {
       Panic.panic(e);
     }
-    return new PageCacheImpl(raf, fc, (int)memory / PAGE_SIZE);
+    return newPageCache(path, raf, fc, options.pageSize, options, options.compress);
   }
 
 
   public static PageCacheImpl open(String path, long memory) {
+    return open(path, PageCacheOptions.newOptions(memory));
+  }
+
+  public static PageCacheImpl open(String path, PageCacheOptions options) {
     File f = new File(path + PageCacheImpl.DB_SUFFIX);
     if (!f.exists()) {
       Panic.panic(Error.FileNotExistsException);
@@ -76,7 +115,54 @@ public interface PageCache {
     } catch (FileNotFoundException e) {
       Panic.panic(e);
     }
-    return new PageCacheImpl(raf, fc, (int)memory / PAGE_SIZE);
+    // 页面大小记录在第一页中，需要在建立缓存之前读出
+    byte[] header = new byte[PageOne.HEADER_SIZE];
+    try {
+      fc.read(ByteBuffer.wrap(header), 0);
+    } catch (IOException e) {
+      Panic.panic(e);
+    }
+    // 页面映射文件存在即表示该数据库是压缩模式
+    boolean compressed = new File(path + CompressedPageCacheImpl.MAP_SUFFIX).exists();
+    return newPageCache(path, raf, fc, PageOne.parsePageSize(header), options, compressed);
+  }
+
+  static PageCacheImpl newPageCache(String path, RandomAccessFile raf, FileChannel fc, int pageSize,
+                                    PageCacheOptions options, boolean compressed) {
+    if (!validPageSize(pageSize)) {
+      Panic.panic(Error.InvalidPageSizeException);
+    }
+    int maxResources = (int)(options.memory / pageSize);
+    if (compressed) {
+      RandomAccessFile mapFile = null;
+      try {
+        mapFile = new RandomAccessFile(path + CompressedPageCacheImpl.MAP_SUFFIX, "rw");
+      } catch (FileNotFoundException e) {
+        Panic.panic(e);
+      }
+      return withOffHeap(new CompressedPageCacheImpl(raf, fc, mapFile, pageSize, maxResources, options.policy), options);
+    }
+    if (options.mmap) {
+      // 映射的页面由操作系统缓存，不需要堆外页帧
+      return new MappedPageCacheImpl(raf, fc, pageSize, maxResources, options.policy);
+    }
+    return withOffHeap(new PageCacheImpl(raf, fc, pageSize, maxResources, options.policy), options);
+  }
+
+  static PageCacheImpl withOffHeap(PageCacheImpl pc, PageCacheOptions options) {
+    if (options.offHeap > 0) {
+      pc.useOffHeap(options.offHeap);
+    }
+    return pc;
+  }
+
+  /**
+   * 页面大小必须是MIN_PAGE_SIZE到MAX_PAGE_SIZE之间的2的幂
+   * @param pageSize
+   * @return
+   */
+  static boolean validPageSize(int pageSize) {
+    return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && (pageSize & (pageSize - 1)) == 0;
   }
 }
 
@@ -0,0 +1,33 @@
+package com.axuan.mydb.backend.dm.pageCache;
+
+import com.axuan.mydb.backend.common.ReplacementPolicy;
+
+/**
+ * 页面缓存的配置
+ * @author axuan
+ */
+public class PageCacheOptions {
+
+  public long memory;     // 缓存使用的内存大小
+
+  public String policy;   // 页面置换策略
+
+  public boolean mmap;    // 是否使用内存映射的方式读写数据文件
+
+  public int pageSize;    // 新建数据库的页面大小，打开已有数据库时以第一页中记录的为准
+
+  public boolean compress; // 新建数据库时是否压缩页面，打开已有数据库时以是否存在页面映射文件为准；压缩模式下不使用mmap
+
+  public long offHeap;    // 缓存被驱逐页面的堆外内存大小，0表示不使用；mmap模式下不使用
+
+  public static PageCacheOptions newOptions(long memory) {
+    PageCacheOptions options = new PageCacheOptions();
+    options.memory = memory;
+    options.policy = ReplacementPolicy.CLOCK;
+    options.mmap = false;
+    options.pageSize = PageCache.PAGE_SIZE;
+    options.compress = false;
+    options.offHeap = 0;
+    return options;
+  }
+}
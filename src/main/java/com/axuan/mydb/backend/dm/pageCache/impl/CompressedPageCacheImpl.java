@@ -0,0 +1,402 @@
+package com.axuan.mydb.backend.dm.pageCache.impl;
+
+import com.axuan.mydb.backend.utils.Panic;
+import com.axuan.mydb.backend.utils.Parser;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 压缩页面的页面缓存
+ * 页面写回时用Deflater(BEST_SPEED)压缩，读入时解压，缓存中的页面仍是完整的明文
+ * 压缩后的页面长度不定，存放在数据文件的槽(slot)中，槽的大小是SLOT_UNIT的2的幂倍，最大为一页；
+ * 页号到槽的映射记录在.pmap文件中，每项[Offset(8)][Length(4)]，Length为0表示页面从未写入，等于页面大小表示未压缩
+ * 第一页总是不压缩地放在数据文件的开头，打开数据库时可以直接读出页面大小
+ * 页面每次写回都写到新的槽中，映射项要等数据force之后才写入，旧槽要等映射落盘之后才能复用，
+ * 崩溃时映射总是指向完整的页面
+ * .pmap文件存在即表示该数据库使用压缩模式
+ * @author axuan
+ */
+public class CompressedPageCacheImpl extends PageCacheImpl {
+
+  public static final String MAP_SUFFIX = ".pmap";
+
+  private static final int SLOT_UNIT = 512;
+
+  private static final int ENTRY_SIZE = 8 + 4;
+
+  private RandomAccessFile mapFile;
+
+  private FileChannel mapFc;
+
+  private Lock slotLock;
+
+  private Lock forceLock;   // 多个写线程同时force时，保证映射项按交换的顺序落盘
+
+  private long[] offsets;   // 页号到槽的偏移，下标为页号-1
+
+  private int[] lengths;    // 页面在槽中的长度
+
+  private Map<Integer, ArrayDeque<Long>> free;   // 按槽大小分类的空闲槽
+
+  private List<long[]> pendingFree;              // 等待映射落盘后才能复用的槽 [offset, slotSize]
+
+  private TreeMap<Integer, long[]> pendingEntries; // 已写入数据但映射项尚未落盘的页面
+
+  private long dataEnd;     // 数据文件中已使用部分的末尾
+
+  private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+  private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+  public CompressedPageCacheImpl(RandomAccessFile file, FileChannel fc, RandomAccessFile mapFile,
+                                 int pageSize, int maxResources, String policy) {
+    super(file, fc, pageSize, maxResources, policy);
+    this.mapFile = mapFile;
+    this.mapFc = mapFile.getChannel();
+    this.slotLock = new ReentrantLock();
+    this.forceLock = new ReentrantLock();
+    this.free = new HashMap<>();
+    this.pendingFree = new ArrayList<>();
+    this.pendingEntries = new TreeMap<>();
+    loadMap();
+  }
+
+  /**
+   * 读入页面映射，重建空闲槽
+   */
+  private void loadMap() {
+    int pageNumber = 0;
+    byte[] raw = null;
+    try {
+      pageNumber = (int)(mapFc.size() / ENTRY_SIZE);
+      raw = new byte[pageNumber * ENTRY_SIZE];
+      ByteBuffer buf = ByteBuffer.wrap(raw);
+      long pos = 0;
+      while (buf.hasRemaining()) {
+        int n = mapFc.read(buf, pos);
+        if (n < 0) {
+          break;
+        }
+        pos += n;
+      }
+    } catch (IOException e) {
+      Panic.panic(e);
+    }
+    offsets = new long[Math.max(pageNumber, 16)];
+    lengths = new int[offsets.length];
+    TreeMap<Long, Integer> used = new TreeMap<>();
+    used.put(0L, pageSize); // 第一页
+    for (int i = 0; i < pageNumber; i++) {
+      offsets[i] = Parser.parseLong(Arrays.copyOfRange(raw, i * ENTRY_SIZE, i * ENTRY_SIZE + 8));
+      lengths[i] = Parser.parseInt(Arrays.copyOfRange(raw, i * ENTRY_SIZE + 8, (i + 1) * ENTRY_SIZE));
+      if (i > 0 && lengths[i] > 0) {
+        used.put(offsets[i], slotSize(lengths[i]));
+      }
+    }
+    // 已使用的槽之间的空隙切成尽量大的槽放入空闲列表
+    long end = 0;
+    for (Map.Entry<Long, Integer> e : used.entrySet()) {
+      freeGap(end, e.getKey());
+      end = Math.max(end, e.getKey() + e.getValue());
+    }
+    dataEnd = end;
+    resetPageNumber(pageNumber);
+  }
+
+  private void freeGap(long from, long to) {
+    while (to - from >= SLOT_UNIT) {
+      int size = SLOT_UNIT;
+      while (size * 2 <= pageSize && from + size * 2 <= to && from % (size * 2) == 0) {
+        size *= 2;
+      }
+      free.computeIfAbsent(size, k -> new ArrayDeque<>()).push(from);
+      from += size;
+    }
+  }
+
+  /**
+   * 容纳length字节的最小槽大小
+   */
+  private int slotSize(int length) {
+    int size = SLOT_UNIT;
+    while (size < length) {
+      size *= 2;
+    }
+    return Math.min(size, pageSize);
+  }
+
+  @Override
+  protected void allocate(int pgNo) {
+    // 空间由槽分配，不需要预先扩展文件
+  }
+
+  @Override
+  protected void write(int pgNo, byte[] data) {
+    if (pgNo == 1) {
+      super.write(pgNo, data);
+      return;
+    }
+    byte[] compressed = compress(data);
+    int length = compressed == null ? pageSize : compressed.length;
+    long offset;
+    slotLock.lock();
+    try {
+      offset = allocateSlot(slotSize(length));
+    } finally {
+      slotLock.unlock();
+    }
+    writeAt(offset, compressed == null ? data : compressed);
+
+    // 数据写完后才登记映射项，force时交换出的映射项对应的数据一定已经写入
+    slotLock.lock();
+    try {
+      ensureCapacity(pgNo);
+      // 旧槽在新映射落盘之前仍然可能被崩溃后的数据库引用，不能立即复用
+      long[] pending = pendingEntries.get(pgNo);
+      int oldLength = pending != null ? (int)pending[1] : lengths[pgNo - 1];
+      long oldOffset = pending != null ? pending[0] : offsets[pgNo - 1];
+      if (oldLength > 0) {
+        pendingFree.add(new long[]{oldOffset, slotSize(oldLength)});
+      }
+      pendingEntries.put(pgNo, new long[]{offset, length});
+    } finally {
+      slotLock.unlock();
+    }
+  }
+
+  @Override
+  protected void read(int pgNo, byte[] dst) {
+    if (pgNo == 1) {
+      super.read(pgNo, dst);
+      return;
+    }
+    long offset;
+    int length;
+    slotLock.lock();
+    try {
+      long[] pending = pendingEntries.get(pgNo);
+      if (pending != null) {
+        offset = pending[0];
+        length = (int)pending[1];
+      } else if (pgNo - 1 < offsets.length) {
+        offset = offsets[pgNo - 1];
+        length = lengths[pgNo - 1];
+      } else {
+        length = 0;
+        offset = 0;
+      }
+    } finally {
+      slotLock.unlock();
+    }
+    if (length == 0) {
+      Arrays.fill(dst, (byte)0); // 从未写入的页面
+      return;
+    }
+    if (length == pageSize) {
+      readAt(offset, dst, pageSize);
+      return;
+    }
+    byte[] compressed = new byte[length];
+    readAt(offset, compressed, length);
+    decompress(compressed, dst);
+  }
+
+  /**
+   * 先force数据，再写入并force映射，最后释放旧槽
+   */
+  @Override
+  protected void force() {
+    forceLock.lock();
+    try {
+      doForce();
+    } finally {
+      forceLock.unlock();
+    }
+  }
+
+  private void doForce() {
+    TreeMap<Integer, long[]> entries;
+    List<long[]> frees;
+    slotLock.lock();
+    try {
+      if (pendingEntries.isEmpty()) {
+        entries = null;
+        frees = null;
+      } else {
+        entries = pendingEntries;
+        frees = pendingFree;
+        pendingEntries = new TreeMap<>();
+        pendingFree = new ArrayList<>();
+        for (Map.Entry<Integer, long[]> e : entries.entrySet()) {
+          offsets[e.getKey() - 1] = e.getValue()[0];
+          lengths[e.getKey() - 1] = (int)e.getValue()[1];
+        }
+      }
+    } finally {
+      slotLock.unlock();
+    }
+    super.force();
+    if (entries == null) {
+      return;
+    }
+    try {
+      for (Map.Entry<Integer, long[]> e : entries.entrySet()) {
+        byte[] entry = new byte[ENTRY_SIZE];
+        System.arraycopy(Parser.long2Byte(e.getValue()[0]), 0, entry, 0, 8);
+        System.arraycopy(Parser.int2Byte((int)e.getValue()[1]), 0, entry, 8, 4);
+        ByteBuffer buf = ByteBuffer.wrap(entry);
+        long pos = (long)(e.getKey() - 1) * ENTRY_SIZE;
+        while (buf.hasRemaining()) {
+          pos += mapFc.write(buf, pos);
+        }
+      }
+      mapFc.force(false);
+    } catch (IOException e) {
+      Panic.panic(e);
+    }
+    slotLock.lock();
+    try {
+      for (long[] slot : frees) {
+        free.computeIfAbsent((int)slot[1], k -> new ArrayDeque<>()).push(slot[0]);
+      }
+    } finally {
+      slotLock.unlock();
+    }
+  }
+
+  @Override
+  protected void truncatePages(int maxPgNo) {
+    slotLock.lock();
+    try {
+      pendingEntries.tailMap(maxPgNo, false).clear();
+      for (int i = maxPgNo; i < offsets.length; i++) {
+        offsets[i] = 0;
+        lengths[i] = 0;
+      }
+      mapFile.setLength((long)maxPgNo * ENTRY_SIZE);
+      mapFc.force(false);
+    } catch (IOException e) {
+      Panic.panic(e);
+    } finally {
+      slotLock.unlock();
+    }
+    // 被截掉的页面所占的槽在下次打开时作为空隙回收
+  }
+
+  @Override
+  protected void trimFile(int pageNumber) {
+    slotLock.lock();
+    try {
+      if (mapFc.size() < (long)pageNumber * ENTRY_SIZE) {
+        mapFile.setLength((long)pageNumber * ENTRY_SIZE);
+      }
+    } catch (IOException e) {
+      Panic.panic(e);
+    } finally {
+      slotLock.unlock();
+    }
+    truncateFile(Math.max(dataEnd, pageSize));
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    try {
+      mapFc.close();
+      mapFile.close();
+    } catch (IOException e) {
+      Panic.panic(e);
+    }
+  }
+
+  private void ensureCapacity(int pgNo) {
+    if (pgNo > offsets.length) {
+      int cap = Math.max(pgNo, offsets.length * 2);
+      offsets = Arrays.copyOf(offsets, cap);
+      lengths = Arrays.copyOf(lengths, cap);
+    }
+  }
+
+  private long allocateSlot(int size) {
+    ArrayDeque<Long> list = free.get(size);
+    if (list != null && !list.isEmpty()) {
+      return list.pop();
+    }
+    long offset = Math.max(dataEnd, pageSize);
+    dataEnd = offset + size;
+    return offset;
+  }
+
+  /**
+   * 压缩页面数据
+   * @param data
+   * @return 压缩后不能节省至少一个SLOT_UNIT时返回null，按原样存放
+   */
+  private byte[] compress(byte[] data) {
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+    deflater.setInput(data);
+    deflater.finish();
+    byte[] buf = new byte[pageSize - SLOT_UNIT];
+    int n = deflater.deflate(buf);
+    if (!deflater.finished()) {
+      return null;
+    }
+    return Arrays.copyOf(buf, n);
+  }
+
+  private void decompress(byte[] compressed, byte[] dst) {
+    Inflater inflater = inflaters.get();
+    inflater.reset();
+    inflater.setInput(compressed);
+    try {
+      int n = 0;
+      while (n < dst.length && !inflater.finished()) {
+        n += inflater.inflate(dst, n, dst.length - n);
+      }
+    } catch (DataFormatException e) {
+      Panic.panic(e);
+    }
+  }
+
+  private void writeAt(long offset, byte[] data) {
+    ByteBuffer buf = ByteBuffer.wrap(data);
+    try {
+      while (buf.hasRemaining()) {
+        offset += fc.write(buf, offset);
+      }
+    } catch (IOException e) {
+      Panic.panic(e);
+    }
+  }
+
+  private void readAt(long offset, byte[] dst, int length) {
+    ByteBuffer buf = ByteBuffer.wrap(dst, 0, length);
+    try {
+      while (buf.hasRemaining()) {
+        int n = fc.read(buf, offset);
+        if (n < 0) {
+          Arrays.fill(dst, buf.position(), length, (byte)0);
+          break;
+        }
+        offset += n;
+      }
+    } catch (IOException e) {
+      Panic.panic(e);
+    }
+  }
+}
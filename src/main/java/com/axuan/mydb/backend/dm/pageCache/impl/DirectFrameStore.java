@@ -0,0 +1,194 @@
+package com.axuan.mydb.backend.dm.pageCache.impl;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆外页帧
+ * 预先分配的直接内存切成页面大小的页帧，作为堆内页面缓存之下的第二层缓存：
+ * 页面从堆内缓存驱逐时(脏页已经写回)拷贝到一个堆外页帧，缺页时先从堆外页帧取回，取回后该页帧即空闲，
+ * 一个页面只在其中一层中。堆内缓存只需要容纳正在使用的页面，其余缓存的页面不占用GC管理的堆
+ * 同一页面的存入和取回不会并发：AbstractCache驱逐写回期间，对该页面的请求会等待写回完成
+ * 页帧用满时按页帧顺序循环淘汰，堆外的页面都是干净的，淘汰时直接丢弃
+ * @author axuan
+ */
+public class DirectFrameStore {
+
+  private static final int SLAB_SIZE = 1 << 30; // 每块直接内存1GB，是任意合法页面大小的整数倍
+
+  private static final int STRIPES = 64; // 页帧锁的数量
+
+  private static final int FREE = 0; // 页帧空闲
+
+  private static final int FILLING = -1; // 页帧已分配，正在写入
+
+  private int frameSize;
+
+  private int framesPerSlab;
+
+  private int frameCount;
+
+  private ByteBuffer[] slabs;
+
+  private int[] owner; // 页帧中的页号，由页帧所在的锁保护
+
+  private Object[] stripes;
+
+  private ConcurrentHashMap<Integer, Integer> index; // 页号到页帧
+
+  private ConcurrentLinkedQueue<Integer> free;
+
+  private Lock evictLock;
+
+  private int hand; // 淘汰的位置，由evictLock保护
+
+  public DirectFrameStore(int frameSize, long memory) {
+    this.frameSize = frameSize;
+    this.framesPerSlab = SLAB_SIZE / frameSize;
+    this.frameCount = (int)Math.min(memory / frameSize, Integer.MAX_VALUE);
+    int slabNo = (frameCount + framesPerSlab - 1) / framesPerSlab;
+    this.slabs = new ByteBuffer[slabNo];
+    for (int i = 0; i < slabNo; i++) {
+      int frames = Math.min(framesPerSlab, frameCount - i * framesPerSlab);
+      slabs[i] = ByteBuffer.allocateDirect(frames * frameSize);
+    }
+    this.owner = new int[frameCount];
+    this.stripes = new Object[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Object();
+    }
+    this.index = new ConcurrentHashMap<>();
+    this.free = new ConcurrentLinkedQueue<>();
+    for (int i = 0; i < frameCount; i++) {
+      free.offer(i);
+    }
+    this.evictLock = new ReentrantLock();
+  }
+
+  /**
+   * 将页面存入一个堆外页帧，页帧用满时淘汰最早存入的页面
+   * @param pgNo
+   * @param src 页面数据
+   */
+  public void put(int pgNo, byte[] src) {
+    if (frameCount == 0) {
+      return;
+    }
+    invalidate(pgNo);
+    int f = allocate();
+    synchronized (stripe(f)) {
+      view(f).put(src);
+      owner[f] = pgNo;
+    }
+    index.put(pgNo, f);
+  }
+
+  /**
+   * 取回页面并释放它的页帧
+   * @param pgNo
+   * @param dst 页面数据拷贝到这里
+   * @return 页面不在堆外时返回false
+   */
+  public boolean take(int pgNo, byte[] dst) {
+    Integer f = index.remove(pgNo);
+    if (f == null) {
+      return false;
+    }
+    synchronized (stripe(f)) {
+      if (owner[f] != pgNo) {
+        return false;
+      }
+      view(f).get(dst);
+      owner[f] = FREE;
+    }
+    free.offer(f);
+    return true;
+  }
+
+  /**
+   * 丢弃页面在堆外的副本
+   * @param pgNo
+   */
+  public void invalidate(int pgNo) {
+    Integer f = index.remove(pgNo);
+    if (f == null) {
+      return;
+    }
+    synchronized (stripe(f)) {
+      if (owner[f] != pgNo) {
+        return;
+      }
+      owner[f] = FREE;
+    }
+    free.offer(f);
+  }
+
+  /**
+   * 截断数据文件时调用，丢弃maxPgNo之后的页面
+   * @param maxPgNo
+   */
+  public void invalidateAbove(int maxPgNo) {
+    for (int pgNo : index.keySet()) {
+      if (pgNo > maxPgNo) {
+        invalidate(pgNo);
+      }
+    }
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * 取一个空闲页帧，没有时从hand开始淘汰第一个存有页面的页帧
+   */
+  private int allocate() {
+    while (true) {
+      Integer f = free.poll();
+      if (f != null) {
+        synchronized (stripe(f)) {
+          if (owner[f] == FREE) {
+            owner[f] = FILLING;
+            return f;
+          }
+        }
+        continue;
+      }
+      evictLock.lock();
+      try {
+        for (int i = 0; i < frameCount; i++) {
+          int h = hand;
+          hand = (hand + 1) % frameCount;
+          synchronized (stripe(h)) {
+            int pgNo = owner[h];
+            if (pgNo > 0) {
+              index.remove(pgNo, h);
+              owner[h] = FILLING;
+              return h;
+            }
+          }
+        }
+      } finally {
+        evictLock.unlock();
+      }
+      // 所有页帧都在写入中，等待其中一个完成
+      Thread.yield();
+    }
+  }
+
+  private Object stripe(int f) {
+    return stripes[f & (STRIPES - 1)];
+  }
+
+  private ByteBuffer view(int f) {
+    ByteBuffer view = slabs[f / framesPerSlab].duplicate();
+    int offset = (f % framesPerSlab) * frameSize;
+    ((Buffer) view).limit(offset + frameSize);
+    ((Buffer) view).position(offset);
+    return view;
+  }
+}
@@ -0,0 +1,62 @@
+package com.axuan.mydb.backend.dm.pageCache.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 页帧池
+ * 被驱逐页面的页帧(页面大小的byte数组)回收到池中，供下一次缺页时复用
+ * 缓存稳定后页帧的数量固定为缓存容量，不再随缺页不断分配短命的大数组
+ * 这里的页帧只用于堆内的页面，设置了堆外内存时其余缓存的页面在DirectFrameStore中
+ * @author axuan
+ */
+public class FramePool {
+
+  private int frameSize;
+
+  private int capacity; // 池中最多保留的空闲页帧数
+
+  private ConcurrentLinkedQueue<byte[]> free;
+
+  private AtomicInteger freeCount;
+
+  public FramePool(int frameSize, int capacity) {
+    this.frameSize = frameSize;
+    this.capacity = capacity;
+    this.free = new ConcurrentLinkedQueue<>();
+    this.freeCount = new AtomicInteger(0);
+  }
+
+  /**
+   * 取出一个空闲页帧，池为空时新分配一个
+   * 复用的页帧保留着旧内容，调用者需要完整覆盖
+   * @return
+   */
+  public byte[] allocate() {
+    byte[] frame = free.poll();
+    if (frame == null) {
+      return new byte[frameSize];
+    }
+    freeCount.decrementAndGet();
+    return frame;
+  }
+
+  /**
+   * 归还页帧，之后不能再通过任何引用访问它
+   * @param frame
+   */
+  public void recycle(byte[] frame) {
+    if (frame == null || frame.length != frameSize) {
+      return;
+    }
+    if (freeCount.incrementAndGet() > capacity) {
+      freeCount.decrementAndGet();
+      return;
+    }
+    free.offer(frame);
+  }
+
+  public int freeFrames() {
+    return freeCount.get();
+  }
+}
@@ -0,0 +1,133 @@
+package com.axuan.mydb.backend.dm.pageCache.impl;
+
+import com.axuan.mydb.backend.utils.Panic;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 使用内存映射读写数据文件的页面缓存
+ * 数据文件按CHUNK_SIZE切成若干区域，每个区域按需映射，文件变长后重新映射末尾的区域
+ * 页面的读写变成对映射区域的内存拷贝，不再需要read/write系统调用，由操作系统的页缓存负责缓存
+ * 文件格式与PageCacheImpl完全一致，两种模式可以打开同一个数据库
+ * @author axuan
+ */
+public class MappedPageCacheImpl extends PageCacheImpl {
+
+  private static final long CHUNK_SIZE = 1L << 26; // 每个映射区域64MB，是任意合法页面大小的整数倍
+
+  private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0]; // 写时复制，读时不加锁
+
+  private Lock mapLock = new ReentrantLock();
+
+  public MappedPageCacheImpl(RandomAccessFile file, FileChannel fc, int pageSize, int maxResources, String policy) {
+    super(file, fc, pageSize, maxResources, policy);
+  }
+
+  @Override
+  protected void read(int pgNo, byte[] dst) {
+    long offset = pageOffset(pgNo);
+    ByteBuffer region = regionFor(offset);
+    if (region == null) {
+      // 页面超出文件末尾
+      super.read(pgNo, dst);
+      return;
+    }
+    ByteBuffer view = region.duplicate();
+    ((Buffer) view).position((int)(offset % CHUNK_SIZE));
+    view.get(dst);
+  }
+
+  @Override
+  protected void write(int pgNo, byte[] data) {
+    long offset = pageOffset(pgNo);
+    ByteBuffer region = regionFor(offset);
+    if (region == null) {
+      // 新页面，通过channel写入来扩展文件，之后的访问会重新映射
+      super.write(pgNo, data);
+      return;
+    }
+    ByteBuffer view = region.duplicate();
+    ((Buffer) view).position((int)(offset % CHUNK_SIZE));
+    view.put(data);
+  }
+
+  @Override
+  protected void force() {
+    for (MappedByteBuffer region : regions) {
+      if (region != null) {
+        region.force();
+      }
+    }
+    super.force();
+  }
+
+  @Override
+  protected void truncateFile(long size) {
+    mapLock.lock();
+    try {
+      // 丢弃超出新文件长度的映射，避免访问文件之外的映射区域
+      MappedByteBuffer[] rs = regions.clone();
+      for (int i = 0; i < rs.length; i++) {
+        if (rs[i] != null && i * CHUNK_SIZE + rs[i].capacity() > size) {
+          rs[i].force();
+          rs[i] = null;
+        }
+      }
+      regions = rs;
+      super.truncateFile(size);
+    } finally {
+      mapLock.unlock();
+    }
+  }
+
+  /**
+   * 获得offset处一整页所在的映射区域
+   * @param offset
+   * @return 页面超出文件末尾时返回null
+   */
+  private ByteBuffer regionFor(long offset) {
+    int idx = (int)(offset / CHUNK_SIZE);
+    long inChunk = offset % CHUNK_SIZE;
+    MappedByteBuffer[] rs = regions;
+    if (idx < rs.length && rs[idx] != null && inChunk + pageSize <= rs[idx].capacity()) {
+      return rs[idx];
+    }
+
+    mapLock.lock();
+    try {
+      rs = regions;
+      if (idx < rs.length && rs[idx] != null && inChunk + pageSize <= rs[idx].capacity()) {
+        return rs[idx];
+      }
+      long start = idx * CHUNK_SIZE;
+      long fileLen = fc.size();
+      if (fileLen < offset + pageSize) {
+        return null;
+      }
+      // 只映射文件已有的部分，映射不会改变文件长度
+      long size = Math.min(CHUNK_SIZE, fileLen - start);
+      MappedByteBuffer region = fc.map(MapMode.READ_WRITE, start, size);
+      if (idx >= rs.length) {
+        rs = Arrays.copyOf(rs, idx + 1);
+      } else {
+        rs = rs.clone();
+      }
+      rs[idx] = region; // 新旧映射共享同一份文件页，旧映射上的修改在新映射中可见
+      regions = rs;
+      return region;
+    } catch (IOException e) {
+      Panic.panic(e);
+      return null;
+    } finally {
+      mapLock.unlock();
+    }
+  }
+}
@@ -1,15 +1,25 @@
 package com.axuan.mydb.backend.dm.pageCache.impl;
 
+import com.axuan.mydb.backend.dm.logger.Logger;
 import com.axuan.mydb.backend.dm.page.Page;
 import com.axuan.mydb.backend.dm.page.impl.PageImpl;
 import com.axuan.mydb.backend.dm.pageCache.PageCache;
 import com.axuan.mydb.backend.utils.Panic;
 import com.axuan.mydb.backend.common.AbstractCache;
+import com.axuan.mydb.backend.common.ReplacementPolicy;
 import com.axuan.mydb.common.Error;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -17,6 +27,17 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * 页面缓存的具体实现类
  * PageCache是中间桥梁，对文件系统进行读写，并向上提供服务
+ * 释放后的页面仍然留在缓存中，缓存满时由置换策略选出未被引用的页面驱逐，脏页在驱逐时写回
+ * 后台的PageFlusher会提前批量写回未被引用的脏页，使驱逐时通常不需要等待磁盘
+ * 被驱逐页面的页帧回收到FramePool中，缺页时优先复用
+ * 设置了堆外内存时，被驱逐的页面(已经写回)存入DirectFrameStore的堆外页帧，缺页时先从堆外取回，
+ * 堆内只保留正在使用的页面，其余缓存的页面在GC管理的堆之外
+ * ReadAhead检测到顺序访问时，异步预读之后的页面
+ * 数据文件按区段(extent)预先扩展，新页面直接从区段中分配，不再每页扩展一次文件、force一次；
+ * 正常关闭时截掉未使用的部分，崩溃后由Recover根据日志截断
+ * 设置了日志时，写回脏页之前先等待日志落盘(WAL)；
+ * 同时维护脏页表，记录每个脏页的recLSN：页面变脏时日志的末尾，之后修改它的日志都在recLSN之后，
+ * 页面拷贝出去写回时移入flushing，落盘后才移除，检查点据此决定redo的起点
  * @author axuan
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
@@ -24,20 +45,66 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
   /**页面缓存的最小页数*/
   private static final int MEM_MIN_LIM = 10;
 
+  private static final long MIN_EXTENT = 1L << 20; // 最小区段1MB
+
+  private static final long MAX_EXTENT = 1L << 26; // 最大区段64MB
+
   public static final String DB_SUFFIX = ".db";
 
 
-  private RandomAccessFile file;
+  protected RandomAccessFile file;
 
-  private FileChannel fc;
+  protected FileChannel fc;
 
-  private Lock fileLock;
+  protected int pageSize;
 
 
   private AtomicInteger pageNumbers;
 
+  private volatile long fileLength; // 数据文件已经分配的长度，包含预分配的部分
+
+  private long extentSize; // 下一次扩展的区段大小，随文件增长翻倍
+
+  private Lock extentLock;
+
+  private ConcurrentSkipListSet<Integer> dirtyPages; // 等待后台写回的脏页，按页号排序
+
+  private AtomicInteger dirtyCount;
+
+  private PageFlusher flusher;
+
+  private FramePool frames;
+
+  private ReadAhead readAhead;
+
+  private volatile DirectFrameStore offHeap; // 堆外的第二层缓存，未设置时为null
+
+  private volatile Logger logger;
+
+  private ConcurrentHashMap<Integer, Long> recLsns; // 脏页表，页号到recLSN
+
+  private Set<Flushing> flushing; // 已经拷贝出去写回、还没有落盘的页面
+
+  /**
+   * 正在写回的页面，written之后的第一次force使它落盘
+   */
+  private static class Flushing {
+    int pgNo;
+    long recLsn;
+    volatile boolean written;
+
+    Flushing(int pgNo, long recLsn) {
+      this.pgNo = pgNo;
+      this.recLsn = recLsn;
+    }
+  }
+
   public PageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResources) {
-    super(maxResources);
+    this(file, fc, PAGE_SIZE, maxResources, ReplacementPolicy.CLOCK);
+  }
+
+  public PageCacheImpl(RandomAccessFile file, FileChannel fc, int pageSize, int maxResources, String policy) {
+    super(maxResources, ReplacementPolicy.newPolicy(policy, maxResources));
     if (maxResources < MEM_MIN_LIM) {
       Panic.panic(Error.MemTooSmallException);
     }
@@ -49,31 +116,120 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     }
     this.file = file;
     this.fc = fc;
-    this.fileLock = new ReentrantLock();
-    this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+    this.pageSize = pageSize;
+    this.pageNumbers = new AtomicInteger((int)(length / pageSize));
+    this.fileLength = length;
+    this.extentSize = MIN_EXTENT;
+    this.extentLock = new ReentrantLock();
+    this.dirtyPages = new ConcurrentSkipListSet<>();
+    this.dirtyCount = new AtomicInteger(0);
+    this.recLsns = new ConcurrentHashMap<>();
+    this.flushing = ConcurrentHashMap.newKeySet();
+    this.frames = new FramePool(pageSize, maxResources);
+    this.flusher = new PageFlusher(this, maxResources);
+    this.flusher.start();
+    this.readAhead = new ReadAhead(this, maxResources);
+  }
+
+  /**
+   * 使用memory字节的堆外内存缓存被驱逐的页面，在使用缓存之前调用
+   * @param memory
+   */
+  public void useOffHeap(long memory) {
+    this.offHeap = new DirectFrameStore(pageSize, memory);
+  }
+
+  /**
+   * 堆外页帧中的页面数
+   */
+  public int offHeapPages() {
+    DirectFrameStore store = offHeap;
+    return store == null ? 0 : store.size();
   }
 
   @Override
   public int newPage(byte[] initData) {
     int pgNo = pageNumbers.incrementAndGet();
-    Page pg = new PageImpl(pgNo, initData, null);
-    // 创建一个新的页面后，立即刷新到文件
-    flush(pg);
+    allocate(pgNo);
+    DirectFrameStore store = offHeap;
+    if (store != null) {
+      store.invalidate(pgNo); // 截断之前的同号页面不能再被取回
+    }
+    // 新页面只写入，不force：崩溃时没落盘的新页面要么在Recover时被截掉，要么是全0的页面，会被当作空页
+    write(pgNo, initData);
     return pgNo;
   }
 
+  /**
+   * 保证数据文件足够容纳pgNo页，不够时扩展一个区段
+   * @param pgNo
+   */
+  protected void allocate(int pgNo) {
+    long end = pageOffset(pgNo + 1);
+    if (end <= fileLength) {
+      return;
+    }
+    extentLock.lock();
+    try {
+      if (end <= fileLength) {
+        return;
+      }
+      long newLength = Math.max(end, fileLength + extentSize);
+      newLength = (newLength + pageSize - 1) / pageSize * pageSize;
+      file.setLength(newLength);
+      fileLength = newLength;
+      extentSize = Math.min(extentSize * 2, MAX_EXTENT);
+    } catch (IOException e) {
+      Panic.panic(e);
+    } finally {
+      extentLock.unlock();
+    }
+  }
+
 
 
 
   @Override
   public Page getPage(int pgNo) throws Exception {
-    return get((long)pgNo);
+    Page pg = get((long)pgNo);
+    readAhead.accessed(pgNo);
+    return pg;
+  }
+
+  @Override
+  public void prefetch(int pgNo) {
+    if (pgNo > 0 && pgNo <= pageNumbers.get()) {
+      readAhead.prefetch(pgNo);
+    }
+  }
+
+  boolean isResident(int pgNo) {
+    return isCached(pgNo);
+  }
+
+  /**
+   * 由预读线程调用，将页面读入缓存后立即释放
+   * 缓存已满且无法驱逐时放弃预读
+   * @param pgNo
+   */
+  void load(int pgNo) {
+    try {
+      get((long)pgNo);
+    } catch (Exception e) {
+      return;
+    }
+    release((long)pgNo);
   }
 
 
   @Override
   public void close() {
+    readAhead.close();
+    flusher.close();
+    offHeap = null; // 关闭时驱逐的页面不再存入堆外
     super.close();
+    sync();
+    trimFile(pageNumbers.get());
     try {
       fc.close();
       file.close();
@@ -89,13 +245,49 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
   @Override
   public void truncateByPgNo(int maxPgNo) {
-    long size = pageOffset(maxPgNo + 1);
+    truncatePages(maxPgNo);
+    pageNumbers.set(maxPgNo);
+    DirectFrameStore store = offHeap;
+    if (store != null) {
+      store.invalidateAbove(maxPgNo);
+    }
+  }
+
+  /**
+   * 丢弃maxPgNo之后的页面
+   * @param maxPgNo
+   */
+  protected void truncatePages(int maxPgNo) {
+    extentLock.lock();
     try {
-      file.setLength(size);
-    } catch (IOException e) {
-      Panic.panic(e);
+      long length = pageOffset(maxPgNo + 1);
+      truncateFile(length);
+      fileLength = length;
+      extentSize = MIN_EXTENT;
+    } finally {
+      extentLock.unlock();
     }
-    pageNumbers.set(maxPgNo);
+  }
+
+  /**
+   * 关闭时截掉预分配而未使用的部分，下次打开时文件长度即页数
+   * @param pageNumber
+   */
+  protected void trimFile(int pageNumber) {
+    truncateFile(pageOffset(pageNumber + 1));
+  }
+
+  /**
+   * 数据文件的长度不等于页数乘页面大小时，由子类设置打开时的页数
+   * @param pageNumber
+   */
+  protected void resetPageNumber(int pageNumber) {
+    pageNumbers.set(pageNumber);
+  }
+
+  @Override
+  public int getPageSize() {
+    return pageSize;
   }
 
   @Override
@@ -108,16 +300,181 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     flush(pg);
   }
 
+  @Override
+  public void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+
+  /**
+   * 页面中可能包含尚未落盘的日志所描述的修改，写回页面之前先让日志落盘
+   */
+  private void flushLog() {
+    Logger lg = logger;
+    if (lg != null) {
+      lg.flush();
+    }
+  }
+
+  @Override
+  public void markDirty(Page pg) {
+    Logger lg = logger;
+    if (lg != null) {
+      // 页面变脏发生在修改它的日志预留之前，已有的recLSN更早，保留
+      recLsns.putIfAbsent(pg.getPageNumber(), lg.tail());
+    }
+    remarkDirty(pg.getPageNumber());
+  }
+
+  @Override
+  public void markDirty(Page pg, long recLsn) {
+    recLsns.merge(pg.getPageNumber(), recLsn, Math::min);
+    remarkDirty(pg.getPageNumber());
+  }
+
+  /**
+   * 扫描顺序与beginFlush的移动顺序相反：先脏页表再flushing，移动中的页面至少被看到一次
+   */
+  @Override
+  public Map<Integer, Long> dirtyPageTable() {
+    for (Flushing f : flushing) {
+      if (f.written) {
+        sync();
+        break;
+      }
+    }
+    Map<Integer, Long> table = new HashMap<>(recLsns);
+    for (Flushing f : flushing) {
+      table.merge(f.pgNo, f.recLsn, Math::min);
+    }
+    return table;
+  }
+
+  /**
+   * 页面内容被拷贝出去写回时调用，此时没有人能修改该页面
+   * 先登记到flushing再从脏页表中移除，之后的修改会重新记入脏页表
+   * @param pgNo
+   * @return 页面不在脏页表中时返回null
+   */
+  private Flushing beginFlush(int pgNo) {
+    Long recLsn = recLsns.get(pgNo);
+    if (recLsn == null) {
+      return null;
+    }
+    Flushing f = new Flushing(pgNo, recLsn);
+    flushing.add(f);
+    recLsns.remove(pgNo);
+    return f;
+  }
+
+  private void written(Flushing f) {
+    if (f != null) {
+      f.written = true;
+    }
+  }
+
+  /**
+   * force数据文件，此前写完的页面随之落盘，从flushing中移除
+   */
+  private void sync() {
+    List<Flushing> done = new ArrayList<>();
+    for (Flushing f : flushing) {
+      if (f.written) {
+        done.add(f);
+      }
+    }
+    force();
+    flushing.removeAll(done);
+  }
+
+  void remarkDirty(int pgNo) {
+    if (dirtyPages.add(pgNo)) {
+      flusher.dirtyAdded(dirtyCount.incrementAndGet());
+    }
+  }
+
+  int dirtyCount() {
+    return dirtyCount.get();
+  }
+
+  /**
+   * 按页号从小到大取出至多max个脏页
+   * @param max
+   * @return
+   */
+  List<Integer> pollDirty(int max) {
+    List<Integer> batch = new ArrayList<>(max);
+    while (batch.size() < max) {
+      Integer pgNo = dirtyPages.pollFirst();
+      if (pgNo == null) {
+        break;
+      }
+      dirtyCount.decrementAndGet();
+      batch.add(pgNo);
+    }
+    return batch;
+  }
+
+  /**
+   * 写回一批脏页，整批只force一次
+   * 只有未被引用的页面才会被写回：在段锁内拷贝页面内容、清除脏标记并引用该页面，
+   * 之后的修改必然会重新标记脏页，而写回完成前页面也不会被驱逐和重新读取
+   * @param batch 按页号排序的一批页面
+   * @return 因正在被引用而跳过的脏页
+   */
+  List<Integer> writeBatch(List<Integer> batch) {
+    List<Integer> pinned = new ArrayList<>();
+    List<Integer> written = new ArrayList<>();
+    for (int pgNo : batch) {
+      byte[][] snapshot = new byte[1][];
+      Flushing[] f = new Flushing[1];
+      int res = pinIfUnpinned(pgNo, pg -> {
+        if (!pg.isDirty()) {
+          return false;
+        }
+        snapshot[0] = pg.getData().clone();
+        pg.setDirty(false);
+        f[0] = beginFlush(pgNo);
+        return true;
+      });
+      if (res == ACQUIRED) {
+        if (written.isEmpty()) {
+          flushLog(); // 快照之前的日志都已追加，整批只等待一次
+        }
+        write(pgNo, snapshot[0]);
+        written(f[0]);
+        written.add(pgNo);
+      } else if (res == PINNED) {
+        pinned.add(pgNo);
+      }
+    }
+    if (!written.isEmpty()) {
+      sync();
+    }
+    for (int pgNo : written) {
+      release((long)pgNo);
+    }
+    return pinned;
+  }
+
   /**
-   * 将脏页刷新到磁盘中
+   * 页面被驱逐或缓存关闭时，将脏页刷新到磁盘中，页面拷贝到堆外页帧后回收堆内的页帧
+   * 此时页面已经不被任何人引用，也不在缓存中
    * @param pg
    */
   @Override
   protected void releaseForCache(Page pg) {
     if (pg.isDirty()) {
-      flush(pg);
+      Flushing f = beginFlush(pg.getPageNumber());
+      flushLog();
+      write(pg.getPageNumber(), pg.getData());
       pg.setDirty(false);
+      written(f); // 下一次force时落盘
+    }
+    DirectFrameStore store = offHeap;
+    if (store != null && pg.getPageNumber() <= pageNumbers.get()) {
+      store.put(pg.getPageNumber(), pg.getData());
     }
+    frames.recycle(pg.getData());
   }
 
   /**
@@ -125,24 +482,42 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
    * @param pg
    */
   private void flush(Page pg) {
-    int pgNo = pg.getPageNumber();
+    pg.setDirty(false);
+    Flushing f = beginFlush(pg.getPageNumber());
+    flushLog();
+    write(pg.getPageNumber(), pg.getData());
+    written(f);
+    sync();
+  }
+
+  /**
+   * 将页面数据写入文件，不force
+   * 使用带位置的写，不改变channel的position，不同页面的读写可以并行
+   * @param pgNo
+   * @param data
+   */
+  protected void write(int pgNo, byte[] data) {
     long offset = pageOffset(pgNo);
+    ByteBuffer buf = ByteBuffer.wrap(data);
+    try {
+      while (buf.hasRemaining()) {
+        offset += fc.write(buf, offset);
+      }
+    } catch (IOException e) {
+      Panic.panic(e);
+    }
+  }
 
-    fileLock.lock();
+  protected void force() {
     try {
-      ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-      fc.position(offset);
-      fc.write(buf);
       fc.force(false);
     } catch (IOException e) {
       Panic.panic(e);
-    } finally {
-      fileLock.unlock();
     }
   }
 
   /**
-   * 根据pageNumber从数据库文件中读取页数据，并包裹成Page
+   * 根据pageNumber从堆外页帧或数据库文件中读取页数据，并包裹成Page
    * @param key
    * @return
    * @throws Exception
@@ -150,18 +525,43 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
   @Override
   protected Page getForCache(long key) throws Exception {
     int pgNo = (int)key;
-    long offset = PageCacheImpl.pageOffset(key);
+    byte[] data = frames.allocate();
+    DirectFrameStore store = offHeap;
+    if (store == null || !store.take(pgNo, data)) {
+      read(pgNo, data);
+    }
+    return new PageImpl(pgNo, data, this);
+  }
 
-    ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-    fileLock.lock();
+  /**
+   * 从文件中读取一页数据到dst中
+   * @param pgNo
+   * @param dst
+   */
+  protected void read(int pgNo, byte[] dst) {
+    long offset = pageOffset(pgNo);
+    ByteBuffer buf = ByteBuffer.wrap(dst);
     try {
-      fc.position(offset);
-      fc.read(buf);
+      while (buf.hasRemaining()) {
+        int n = fc.read(buf, offset);
+        if (n < 0) {
+          // 超出文件末尾的部分视为全0，复用的页帧中可能残留旧数据
+          Arrays.fill(dst, buf.position(), dst.length, (byte)0);
+          break;
+        }
+        offset += n;
+      }
+    } catch (IOException e) {
+      Panic.panic(e);
+    }
+  }
+
+  protected void truncateFile(long size) {
+    try {
+      file.setLength(size);
     } catch (IOException e) {
       Panic.panic(e);
     }
-    fileLock.unlock();
-    return new PageImpl(pgNo, buf.array(), this);
   }
 
   /**
@@ -169,7 +569,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
    * @param pgNo
    * @return
    */
-  private static long pageOffset(long pgNo) {
-    return (pgNo - 1) * PAGE_SIZE;
+  protected long pageOffset(long pgNo) {
+    return (pgNo - 1) * pageSize;
   }
 }
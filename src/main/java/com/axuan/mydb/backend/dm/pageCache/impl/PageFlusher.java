@@ -0,0 +1,157 @@
+package com.axuan.mydb.backend.dm.pageCache.impl;
+
+import com.axuan.mydb.backend.utils.Panic;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台刷脏页线程
+ * 脏页数超过高水位时，刷到低水位以下；每隔一个写回周期，刷回所有未被引用的脏页
+ * 脏页按页号从小到大切成批次，交给写线程池，每个批次只force一次
+ * @author axuan
+ */
+public class PageFlusher {
+
+  private static final int BATCH_SIZE = 64; // 每批最多写回的页数
+
+  private static final int WRITER_NO = 2; // 写线程数
+
+  private static final long FLUSH_INTERVAL_MS = 1000; // 定期写回的周期
+
+  private PageCacheImpl pc;
+
+  private int highWater; // 脏页高水位
+
+  private int lowWater;  // 脏页低水位
+
+  private ExecutorService writers;
+
+  private Thread coordinator;
+
+  private Lock lock;
+
+  private Condition wakeUp;
+
+  private volatile boolean closed;
+
+  private static final AtomicInteger threadNo = new AtomicInteger(0);
+
+  public PageFlusher(PageCacheImpl pc, int maxResources) {
+    this.pc = pc;
+    this.highWater = Math.max(maxResources / 4, 1);
+    this.lowWater = highWater / 2;
+    this.lock = new ReentrantLock();
+    this.wakeUp = lock.newCondition();
+    int no = threadNo.incrementAndGet();
+    this.writers = Executors.newFixedThreadPool(WRITER_NO, r -> {
+      Thread t = new Thread(r, "page-writer-" + no);
+      t.setDaemon(true);
+      return t;
+    });
+    this.coordinator = new Thread(this::run, "page-flusher-" + no);
+    this.coordinator.setDaemon(true);
+  }
+
+  public void start() {
+    coordinator.start();
+  }
+
+  /**
+   * 脏页数量变化时调用，超过高水位则唤醒刷盘线程
+   * @param dirtyCount
+   */
+  void dirtyAdded(int dirtyCount) {
+    if (dirtyCount < highWater) {
+      return;
+    }
+    lock.lock();
+    try {
+      wakeUp.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void run() {
+    long nextFlush = System.currentTimeMillis() + FLUSH_INTERVAL_MS;
+    while (!closed) {
+      lock.lock();
+      try {
+        long wait = nextFlush - System.currentTimeMillis();
+        if (wait > 0 && pc.dirtyCount() < highWater) {
+          wakeUp.await(wait, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException e) {
+        break;
+      } finally {
+        lock.unlock();
+      }
+      if (closed) {
+        break;
+      }
+      if (System.currentTimeMillis() >= nextFlush) {
+        flushDirty(0);
+        nextFlush = System.currentTimeMillis() + FLUSH_INTERVAL_MS;
+      } else if (pc.dirtyCount() >= highWater) {
+        flushDirty(lowWater);
+      }
+    }
+  }
+
+  /**
+   * 按页号顺序批量写回脏页，直到脏页数不超过target
+   * 正在被引用的页面本轮跳过，重新放回脏页集合
+   * @param target
+   */
+  private void flushDirty(int target) {
+    List<Integer> skipped = new ArrayList<>();
+    List<Future<?>> futures = new ArrayList<>();
+    while (pc.dirtyCount() > target) {
+      List<Integer> batch = pc.pollDirty(BATCH_SIZE);
+      if (batch.isEmpty()) {
+        break;
+      }
+      futures.add(writers.submit(() -> skipped(pc.writeBatch(batch), skipped)));
+    }
+    for (Future<?> f : futures) {
+      try {
+        f.get();
+      } catch (Exception e) {
+        Panic.panic(e);
+      }
+    }
+    for (int pgNo : skipped) {
+      pc.remarkDirty(pgNo);
+    }
+  }
+
+  private void skipped(List<Integer> pinned, List<Integer> skipped) {
+    synchronized (skipped) {
+      skipped.addAll(pinned);
+    }
+  }
+
+  public void close() {
+    closed = true;
+    lock.lock();
+    try {
+      wakeUp.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      coordinator.join();
+    } catch (InterruptedException e) {
+      Panic.panic(e);
+    }
+    writers.shutdown();
+  }
+}
@@ -0,0 +1,140 @@
+package com.axuan.mydb.backend.dm.pageCache.impl;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 页面预读
+ * 检测向前推进的访问序列：相邻两次访问的页号差在(0, WINDOW]内即视为顺序访问，
+ * 顺序访问连续达到TRIGGER次后，异步地把之后WINDOW个页面读入缓存
+ * 既能覆盖fillPageIndex这样的逐页扫描，也能覆盖B+树沿兄弟节点链、页号递增但不连续的叶子遍历
+ * 每个线程各自检测自己的访问序列，并发的扫描互不打断，检测也不需要加锁
+ * @author axuan
+ */
+public class ReadAhead {
+
+  private static final int TRIGGER = 2;     // 连续顺序访问多少次后开始预读
+
+  private static final int WINDOW = 8;      // 每次预读的页数，也是判定顺序访问的最大跨度
+
+  private static final int QUEUE_SIZE = 64; // 预读任务队列长度，满了直接丢弃
+
+  private static final int READER_NO = 2;   // 预读线程数
+
+  private PageCacheImpl pc;
+
+  private int window;
+
+  private ThreadLocal<Sequence> sequences;
+
+  private Set<Integer> inFlight;
+
+  private ThreadPoolExecutor readers;
+
+  private volatile boolean closed;
+
+  private static final AtomicInteger threadNo = new AtomicInteger(0);
+
+  /**
+   * 一个线程的访问序列
+   */
+  private static class Sequence {
+    int lastPgNo;     // 上一次访问的页号
+    int run;          // 连续顺序访问的次数
+    int prefetchedTo; // 已经发起预读的最大页号
+  }
+
+  public ReadAhead(PageCacheImpl pc, int maxResources) {
+    this.pc = pc;
+    this.window = Math.max(Math.min(WINDOW, maxResources / 4), 1); // 预读不能挤占太多缓存
+    this.sequences = ThreadLocal.withInitial(Sequence::new);
+    this.inFlight = ConcurrentHashMap.newKeySet();
+    int no = threadNo.incrementAndGet();
+    this.readers = new ThreadPoolExecutor(READER_NO, READER_NO, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+          Thread t = new Thread(r, "page-read-ahead-" + no);
+          t.setDaemon(true);
+          return t;
+        }, (r, executor) -> inFlight.remove(((PrefetchTask) r).pgNo)); // 队列满了直接丢弃
+  }
+
+  /**
+   * 每次getPage时调用，检测到顺序访问后发起预读
+   * @param pgNo
+   */
+  void accessed(int pgNo) {
+    Sequence seq = sequences.get();
+    int delta = pgNo - seq.lastPgNo;
+    seq.lastPgNo = pgNo;
+    if (delta <= 0 || delta > window) {
+      seq.run = 0;
+      seq.prefetchedTo = pgNo;
+      return;
+    }
+    if (++seq.run < TRIGGER) {
+      return;
+    }
+    // 预读窗口随访问推进：已预读的页面还剩不到半个窗口时，预读下一个窗口
+    int from = Math.max(seq.prefetchedTo, pgNo) + 1;
+    if (from - pgNo > window / 2 + 1) {
+      return;
+    }
+    int to = Math.min(pgNo + window, pc.getPageNumber());
+    if (from > to) {
+      return;
+    }
+    seq.prefetchedTo = to;
+    for (int i = from; i <= to; i++) {
+      prefetch(i);
+    }
+  }
+
+  /**
+   * 异步地将页面读入缓存，页面已在缓存中时什么也不做
+   * @param pgNo
+   */
+  void prefetch(int pgNo) {
+    if (closed || !inFlight.add(pgNo)) {
+      return;
+    }
+    if (pc.isResident(pgNo)) {
+      inFlight.remove(pgNo);
+      return;
+    }
+    readers.execute(new PrefetchTask(pgNo));
+  }
+
+  private class PrefetchTask implements Runnable {
+
+    private int pgNo;
+
+    PrefetchTask(int pgNo) {
+      this.pgNo = pgNo;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (!closed) {
+          pc.load(pgNo);
+        }
+      } finally {
+        inFlight.remove(pgNo);
+      }
+    }
+  }
+
+  public void close() {
+    closed = true;
+    readers.shutdown();
+    try {
+      readers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -15,12 +15,17 @@ public class PageIndex {
 
   // 将一页化成40个空间
   private static final int INTERVALS_NO = 40;
-  private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
+  private int threshold;
   private Lock lock;
   private List<PageInfo>[] lists;
 
   public PageIndex() {
+    this(PageCache.PAGE_SIZE);
+  }
+
+  public PageIndex(int pageSize) {
+    threshold = pageSize / INTERVALS_NO;
     lock = new ReentrantLock();
     lists = new List[INTERVALS_NO + 1];
     for (int i = 0; i < INTERVALS_NO + 1; i++) {
@@ -31,7 +36,7 @@ public class PageIndex {
   public void add(int pgNo, int freeSpace) {
     lock.lock();
     try {
-      int number = freeSpace / THRESHOLD;
+      int number = freeSpace / threshold;
       lists[number].add(new PageInfo(pgNo, freeSpace));
     } finally {
       lock.unlock();
@@ -41,7 +46,7 @@ public class PageIndex {
   public PageInfo select(int spaceSize) {
     lock.lock();
     try {
-      int number = spaceSize / THRESHOLD;
+      int number = spaceSize / threshold;
       if (number < INTERVALS_NO) number++;  // 对计算出的区间向上取整
       while (number <= INTERVALS_NO) {
         if (lists[number].size() == 0) { // 如果计算出的区间大小没有合适的，那么就加，找到更大的区间
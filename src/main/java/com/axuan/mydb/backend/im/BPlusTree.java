@@ -25,10 +25,11 @@ public class BPlusTree {
   long bootUid;
   DataItem bootDataItem;
   Lock bootLock;
+  int balanceNumber;
 
 
   public static long create(DataManager dm) throws Exception {
-    byte[] rawRoot = Node.newNilRootRaw();
+    byte[] rawRoot = Node.newNilRootRaw(Node.balanceNumber(dm.getPageSize()));
     long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
     return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
   }
@@ -41,6 +42,7 @@ public class BPlusTree {
     t.dm = dm;
     t.bootDataItem = bootDataItem;
     t.bootLock = new ReentrantLock();
+    t.balanceNumber = Node.balanceNumber(dm.getPageSize());
     return t;
   }
 
@@ -58,7 +60,7 @@ public class BPlusTree {
   private void updateRootUid(long left, long right, long rightKey) throws Exception {
     bootLock.lock();
     try {
-      byte[] rootRaw = Node.newRootRaw(left, right, rightKey);  // 创建了一个新的根节点
+      byte[] rootRaw = Node.newRootRaw(left, right, rightKey, balanceNumber);  // 创建了一个新的根节点
       long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw); // 插入到dm中
       bootDataItem.before();
       SubArray diRaw = bootDataItem.data();
@@ -105,6 +107,11 @@ public class BPlusTree {
       Node leaf = Node.loadNode(this, leafUid);
       LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
       leaf.release();
+      // 命中的记录要等整个范围扫描完才被读取，提前异步读入；
+      // 兄弟叶子紧接着就被同步读取，提示来不及生效，不再提示；再往后的叶子要读到兄弟之后才知道
+      for (long uid : res.uids) {
+        dm.prefetch(uid);
+      }
       uids.addAll(res.uids);
       if (res.siblingUid == 0) {
         break;
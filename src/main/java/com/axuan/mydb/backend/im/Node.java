@@ -1,6 +1,7 @@
 package com.axuan.mydb.backend.im;
 
 import com.axuan.mydb.backend.dm.dataItem.DataItem;
+import com.axuan.mydb.backend.dm.pageCache.PageCache;
 import com.axuan.mydb.backend.tm.impl.TransactionManagerImpl;
 import com.axuan.mydb.backend.utils.Parser;
 import com.axuan.mydb.backend.common.SubArray;
@@ -21,8 +22,21 @@ public class Node {
   static final int SIBLING_OFFSET = NO_KEYS_OFFSET + 2;  // 兄弟uid占8位
   static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8;// 整个节点头部占1 + 2 + 8 = 11
 
-  static final int BALANCE_NUMBER = 32;
-  static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2); // 节点大小 = 节点头部 + 一个子节点的大小 * ？
+  static final int BALANCE_NUMBER = 32; // 默认页面大小下的平衡因子，随页面大小等比例缩放
+
+  /**
+   * 根据页面大小计算平衡因子，使节点大小与页面大小成比例
+   * @param pageSize
+   * @return
+   */
+  static int balanceNumber(int pageSize) {
+    return BALANCE_NUMBER * pageSize / PageCache.PAGE_SIZE;
+  }
+
+  // 节点大小 = 节点头部 + 一个子节点的大小 * (2 * 平衡因子 + 2)
+  static int nodeSize(int balanceNumber) {
+    return NODE_HEADER_SIZE + (2 * 8) * (balanceNumber * 2 + 2);
+  }
 
   BPlusTree tree;
   DataItem dataItem;
@@ -132,10 +146,12 @@ public class Node {
    * @param left 左节点的uid
    * @param right 右节点的uid
    * @param key 初始键值，不是很理解，我理解是索引上的值
+   * @param balanceNumber 平衡因子
    * @return
    */
-  static byte[] newRootRaw(long left, long right, long key) {
-    SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+  static byte[] newRootRaw(long left, long right, long key, int balanceNumber) {
+    int size = nodeSize(balanceNumber);
+    SubArray raw = new SubArray(new byte[size], 0, size);
 
     setRawIsLeaf(raw, false);
     setRawNoKeys(raw, 2);
@@ -150,10 +166,12 @@ public class Node {
 
   /**
    * 初始一个空的根节点
+   * @param balanceNumber 平衡因子
    * @return
    */
-  static byte[] newNilRootRaw() {
-    SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+  static byte[] newNilRootRaw(int balanceNumber) {
+    int size = nodeSize(balanceNumber);
+    SubArray raw = new SubArray(new byte[size], 0, size);
 
     setRawIsLeaf(raw, true);
     setRawNoKeys(raw, 0);
@@ -310,9 +328,17 @@ public class Node {
   }
 
 
-  // 当一行的节点数量达到64个之后i，需要分裂
+  /**
+   * 平衡因子由节点自身的大小推出，不同页面大小的数据库中节点大小不同
+   * @return
+   */
+  private int balanceNumber() {
+    return ((raw.end - raw.start - NODE_HEADER_SIZE) / (2 * 8) - 2) / 2;
+  }
+
+  // 当一行的节点数量达到平衡因子的两倍之后，需要分裂
   private boolean needSplit() {
-    return BALANCE_NUMBER * 2 == getRawNoKeys(raw);
+    return balanceNumber() * 2 == getRawNoKeys(raw);
   }
 
   class SplitRes {
@@ -320,13 +346,15 @@ public class Node {
   }
 
   private SplitRes split() throws Exception {
-    SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    int balanceNumber = balanceNumber();
+    int size = nodeSize(balanceNumber);
+    SubArray nodeRaw = new SubArray(new byte[size], 0, size);
     setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-    setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+    setRawNoKeys(nodeRaw, balanceNumber);
     setRawSibling(nodeRaw, getRawSibling(raw));
-    copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER); // 将原来的节点全部移到nodeRaw
+    copyRawFromKth(raw, nodeRaw, balanceNumber); // 将原来的节点全部移到nodeRaw
     long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw); // 然后将这些节点持久化，并得到其对应的uid
-    setRawNoKeys(raw, BALANCE_NUMBER); // 设置这一层的节点数量
+    setRawNoKeys(raw, balanceNumber); // 设置这一层的节点数量
     setRawSibling(raw, son); // 则刚才的那个节点就是儿子节点
 
     SplitRes res = new SplitRes();
@@ -372,7 +400,7 @@ public class Node {
    */
   private void shiftRawKth(SubArray raw, int kth) {
     int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-    int end = raw.start + NODE_SIZE - 1;
+    int end = raw.end - 1;
     for (int i = end; i >= begin; i--) {
       raw.raw[i] = raw.raw[i - (8 * 2)];
     }
@@ -446,6 +446,9 @@ public class Parser {
     if ("".equals(isolation)) {
       return begin;
     }
+    if ("async".equals(isolation)) {
+      return parseAsync(tokenizer, begin);
+    }
     if (!"isolation".equals(isolation)) {
       throw Error.InvalidCommandException;
     }
@@ -463,10 +466,7 @@ public class Parser {
       String tmp2 = tokenizer.peek();
       if ("committed".equals(tmp2)) {
         tokenizer.pop();
-        if (!"".equals(tokenizer.peek())) { // 如果后面还有其他字符串，那末就是错误命令
-          throw Error.InvalidCommandException;
-        }
-        return begin;
+        return parseAsync(tokenizer, begin);
       } else {
         throw Error.InvalidCommandException;
       }
@@ -476,10 +476,7 @@ public class Parser {
       if ("read".equals(tmp2)) {
         begin.isRepeatAbleRead = true;
         tokenizer.pop();
-        if (!"".equals(tokenizer.peek())) { // 同理，如果后面，还有其他字符串，则是个错误命令
-          throw Error.InvalidCommandException;
-        }
-        return begin;
+        return parseAsync(tokenizer, begin);
       } else {
         throw Error.InvalidCommandException;
       }
@@ -488,6 +485,18 @@ public class Parser {
     }
   }
 
+  // begin语句最后可选的async，之后如果还有其他字符串，那末就是错误命令
+  private static Begin parseAsync(Tokenizer tokenizer, Begin begin) throws Exception {
+    if ("async".equals(tokenizer.peek())) {
+      begin.isAsync = true;
+      tokenizer.pop();
+    }
+    if (!"".equals(tokenizer.peek())) {
+      throw Error.InvalidCommandException;
+    }
+    return begin;
+  }
+
   private static boolean isType(String tp) {
     return ("int32".equals(tp) || "int64".equals(tp) ||
         "string".equals(tp));
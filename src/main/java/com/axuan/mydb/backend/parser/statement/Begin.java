@@ -2,9 +2,11 @@ package com.axuan.mydb.backend.parser.statement;
 
 /**
  * 默认是读已提交
+ * begin [isolation level ...] async：异步提交，提交日志不等待落盘
  * @author axuan
  * @date 2022/5/23
  **/
 public class Begin {
   public boolean isRepeatAbleRead;
+  public boolean isAsync;
 }
@@ -0,0 +1,352 @@
+package com.axuan.mydb.backend.replica;
+
+import com.axuan.mydb.backend.dm.logger.LogListener;
+import com.axuan.mydb.backend.dm.logger.LogReader;
+import com.axuan.mydb.backend.dm.logger.Logger;
+import com.axuan.mydb.backend.dm.logger.impl.LoggerImpl;
+import com.axuan.mydb.backend.tbm.impl.TableManagerImpl;
+import com.axuan.mydb.backend.tm.TransactionManager;
+import com.axuan.mydb.backend.tm.impl.TransactionManagerImpl;
+import com.axuan.mydb.backend.utils.Panic;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 主库的日志发送者，备库通过它持续获得主库的日志、事务状态和booter
+ *
+ * 备库连接后发送自己日志末尾的LSN和最早的未结束事务，主库先从日志文件中补发备库缺少的日志和当前的booter，
+ * 再补发这些事务的状态，之后持续发送新写入文件的日志、事务的提交和回滚以及booter的更新
+ * 日志落盘之后才发送，备库不会领先于主库崩溃恢复后的状态；事务状态在它之前的日志落盘之后发送，
+ * 异步提交的事务不会在备库上先于它的日志变为已提交
+ *
+ * 握手：
+ * 备库 -> 主库：[Tail][FromXid][Time]
+ * 主库 -> 备库：[Time]
+ * 之后主库发送的消息：
+ * [LOG][Lsn][Length][Log] Lsn为日志末尾的LSN
+ * [COMMIT|ABORT][XID]
+ * [BOOTER][Length][Raw]
+ * [HEARTBEAT][Time] Time之前写入文件的日志和结束的事务都已在它之前发送
+ * [ERROR][Message] 备库无法继续，例如需要的日志已被检查点删除
+ * @author axuan
+ */
+public class LogShipper {
+
+  static final byte LOG = 0;
+  static final byte COMMIT = 1;
+  static final byte ABORT = 2;
+  static final byte BOOTER = 3;
+  static final byte HEARTBEAT = 4;
+  static final byte ERROR = 5;
+
+  private static final int QUEUE_SIZE = 1 << 16; // 每个备库最多积压的消息数，超过时断开，备库重连后从日志文件补发
+
+  static final long HEARTBEAT_MS = 100;
+
+  private int port;
+  private TransactionManagerImpl tm;
+  private Logger lg;
+  private TableManagerImpl tbm;
+  private ServerSocket ss;
+  private List<Subscriber> subscribers;
+  private volatile boolean closed;
+
+  public LogShipper(int port, TransactionManagerImpl tm, Logger lg) {
+    this.port = port;
+    this.tm = tm;
+    this.lg = lg;
+    this.subscribers = new CopyOnWriteArrayList<>();
+  }
+
+  static class Message {
+    byte type;
+    long value; // LOG为LSN，COMMIT和ABORT为XID
+    byte[] data;
+
+    Message(byte type, long value, byte[] data) {
+      this.type = type;
+      this.value = value;
+      this.data = data;
+    }
+  }
+
+  /**
+   * 一个备库连接，写入文件的日志和事务状态先放入它的队列，由连接的线程发送
+   */
+  class Subscriber implements LogListener {
+    BlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    Socket socket;
+    volatile boolean broken;
+
+    @Override
+    public void logged(long lsn, byte[] log) {
+      offer(new Message(LOG, lsn, log));
+    }
+
+    void offer(Message m) {
+      if (!queue.offer(m)) {
+        broken = true;
+      }
+    }
+  }
+
+  /**
+   * 包装主库的TransactionManager，事务结束时发送给备库
+   * @param tm
+   * @return
+   */
+  public TransactionManager wrap(TransactionManager tm) {
+    return new ShippingTransactionManager(tm, this);
+  }
+
+  /**
+   * 监听主库booter的更新，并在备库连接时补发当前的booter
+   * @param tbm
+   */
+  public void setTableManager(TableManagerImpl tbm) {
+    this.tbm = tbm;
+    tbm.setBooterListener(this::booterUpdated);
+  }
+
+  public void start() {
+    try {
+      ss = new ServerSocket(port);
+    } catch (IOException e) {
+      Panic.panic(e);
+    }
+    System.out.println("Log shipper listen to port: " + port);
+    Thread t = new Thread(this::accept, "log-shipper");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void accept() {
+    while (!closed) {
+      Socket socket;
+      try {
+        socket = ss.accept();
+      } catch (IOException e) {
+        break;
+      }
+      Thread t = new Thread(() -> serve(socket), "log-shipper-" + socket.getPort());
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  void committed(long xid) {
+    publish(new Message(COMMIT, xid, null));
+  }
+
+  void aborted(long xid) {
+    publish(new Message(ABORT, xid, null));
+  }
+
+  /**
+   * booter更新时调用，新建的表的日志先写入文件，备库收到booter时已经有了表的数据
+   * @param raw
+   */
+  public void booterUpdated(byte[] raw) {
+    lg.flush();
+    publish(new Message(BOOTER, 0, raw));
+  }
+
+  private void publish(Message m) {
+    for (Subscriber sub : subscribers) {
+      sub.offer(m);
+    }
+  }
+
+  private void serve(Socket socket) {
+    Subscriber sub = new Subscriber();
+    sub.socket = socket;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      long tail = in.readLong();
+      long fromXid = in.readLong();
+      in.readLong();
+      System.out.println("Standby connected: " + socket.getRemoteSocketAddress() + " from lsn " + tail);
+
+      // 先注册再补发，注册之前的日志和事务状态从文件中读取，之后的从队列中取得
+      // booter在注册之前读取，它引用的表的日志都在注册之前落盘，之后的更新从队列中取得
+      subscribers.add(sub);
+      byte[] booter = tbm.loadBooter();
+      lg.flush();
+      long start = lg.addListener(sub);
+      out.writeLong(System.currentTimeMillis());
+      if (!sendMissingLogs(out, tail, start)) {
+        out.writeByte(ERROR);
+        out.writeUTF("Log from " + tail + " to " + start + " is not available on primary");
+        out.flush();
+        return;
+      }
+      write(out, new Message(BOOTER, 0, booter));
+      // 异步提交的事务在内存中先于提交日志落盘变为已提交，发送状态之前先让日志落盘
+      lg.flush();
+      long counter = tm.getXidCounter();
+      for (long xid = fromXid; xid <= counter; xid++) {
+        if (tm.isCommitted(xid)) {
+          write(out, new Message(COMMIT, xid, null));
+        } else if (tm.isAborted(xid)) {
+          write(out, new Message(ABORT, xid, null));
+        }
+      }
+      out.flush();
+
+      List<Message> batch = new ArrayList<>();
+      List<Message> later = new ArrayList<>(); // 落盘之后才到达的状态，留到下一轮
+      while (!closed && !sub.broken) {
+        long now = System.currentTimeMillis();
+        batch.clear();
+        batch.addAll(later);
+        later.clear();
+        if (batch.isEmpty()) {
+          Message m = sub.queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+          if (m != null) {
+            batch.add(m);
+          }
+        }
+        sub.queue.drainTo(batch);
+        if (hasStatus(batch)) {
+          // 状态之前的日志落盘后都已进入队列，一起取出，先于状态发送
+          lg.flush();
+          int n = batch.size();
+          sub.queue.drainTo(batch);
+          for (int i = batch.size() - 1; i >= n; i--) {
+            if (batch.get(i).type != LOG) {
+              later.add(0, batch.remove(i));
+            }
+          }
+        }
+        long lsn = 0;
+        for (Message b : batch) {
+          if (b.type == LOG) {
+            lsn = Math.max(lsn, b.value);
+          }
+        }
+        if (lsn > 0) {
+          lg.flush(lsn);
+        }
+        for (Message b : batch) {
+          if (b.type == LOG) {
+            write(out, b);
+          }
+        }
+        for (Message b : batch) {
+          if (b.type != LOG) {
+            write(out, b);
+          }
+        }
+        // now之前到达的消息都在第一次取出时取出，留到下一轮的状态都在now之后到达
+        out.writeByte(HEARTBEAT);
+        out.writeLong(now);
+        out.flush();
+      }
+    } catch (IOException | InterruptedException e) {
+      // 备库断开，重连后补发
+    } finally {
+      lg.removeListener(sub);
+      subscribers.remove(sub);
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+      }
+      System.out.println("Standby disconnected: " + socket.getRemoteSocketAddress());
+    }
+  }
+
+  /**
+   * 从日志文件中补发LSN在[tail, start)中的日志
+   * 使用独立的读取器，不影响日志自身的读取位置；读取器关闭之前，检查点不删除它要读取的段
+   * @return 日志是否连续，备库需要的日志已被删除或备库领先于主库时返回false
+   */
+  private boolean sendMissingLogs(DataOutputStream out, long tail, long start) throws IOException {
+    if (tail == start) {
+      return true;
+    }
+    if (tail > start) {
+      return false;
+    }
+    lg.flush(start);
+    LogReader reader = lg.openReader(tail);
+    try {
+      long shipped = tail;
+      while (shipped < start) {
+        byte[] log = reader.next();
+        if (log == null) {
+          break;
+        }
+        long lsn = reader.readLsn();
+        if (lsn <= shipped) {
+          continue;
+        }
+        if (lsn - log.length - LoggerImpl.LOG_HEADER_SIZE != shipped) {
+          return false;
+        }
+        write(out, new Message(LOG, lsn, log));
+        shipped = lsn;
+      }
+      return shipped == start;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static boolean hasStatus(List<Message> batch) {
+    for (Message m : batch) {
+      if (m.type != LOG) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void write(DataOutputStream out, Message m) throws IOException {
+    out.writeByte(m.type);
+    switch (m.type) {
+      case LOG:
+        out.writeLong(m.value);
+        out.writeInt(m.data.length);
+        out.write(m.data);
+        break;
+      case COMMIT:
+      case ABORT:
+        out.writeLong(m.value);
+        break;
+      case BOOTER:
+        out.writeInt(m.data.length);
+        out.write(m.data);
+        break;
+      default:
+        break;
+    }
+  }
+
+  public void close() {
+    closed = true;
+    try {
+      if (ss != null) {
+        ss.close();
+      }
+    } catch (IOException ignored) {
+    }
+    for (Subscriber sub : subscribers) {
+      try {
+        sub.socket.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+}
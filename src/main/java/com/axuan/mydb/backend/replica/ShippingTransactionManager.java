@@ -0,0 +1,77 @@
+package com.axuan.mydb.backend.replica;
+
+import com.axuan.mydb.backend.tm.TransactionManager;
+
+/**
+ * 主库使用的TransactionManager，事务提交或回滚之后交给LogShipper发送给备库
+ * 提交之前事务的日志已经落盘，也就已经交给了LogShipper，备库总是先收到日志再收到提交
+ * @author axuan
+ */
+class ShippingTransactionManager implements TransactionManager {
+
+  private TransactionManager tm;
+  private LogShipper shipper;
+
+  ShippingTransactionManager(TransactionManager tm, LogShipper shipper) {
+    this.tm = tm;
+    this.shipper = shipper;
+  }
+
+  @Override
+  public long begin() {
+    return tm.begin();
+  }
+
+  @Override
+  public void commit(long xid) {
+    tm.commit(xid);
+    shipper.committed(xid);
+  }
+
+  @Override
+  public void commitAsync(long xid) {
+    tm.commitAsync(xid);
+    shipper.committed(xid);
+  }
+
+  @Override
+  public void abort(long xid) {
+    tm.abort(xid);
+    shipper.aborted(xid);
+  }
+
+  @Override
+  public void sync() {
+    tm.sync();
+  }
+
+  @Override
+  public void abortUnfinished() {
+    tm.abortUnfinished();
+  }
+
+  @Override
+  public void freeze() {
+    tm.freeze();
+  }
+
+  @Override
+  public boolean isActive(long xid) {
+    return tm.isActive(xid);
+  }
+
+  @Override
+  public boolean isCommitted(long xid) {
+    return tm.isCommitted(xid);
+  }
+
+  @Override
+  public boolean isAborted(long xid) {
+    return tm.isAborted(xid);
+  }
+
+  @Override
+  public void close() {
+    tm.close();
+  }
+}
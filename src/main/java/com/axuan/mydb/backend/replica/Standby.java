@@ -0,0 +1,181 @@
+package com.axuan.mydb.backend.replica;
+
+import com.axuan.mydb.backend.dm.DataManagerImpl;
+import com.axuan.mydb.backend.tbm.impl.TableManagerImpl;
+import com.axuan.mydb.backend.tm.impl.TransactionManagerImpl;
+import com.axuan.mydb.backend.utils.Panic;
+import com.axuan.mydb.common.Error;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * 备库，从主库的LogShipper接收日志并持续redo，同时通过自己的Server提供只读查询
+ *
+ * 备库从主库正常关闭后的一份文件拷贝开始，本地日志与主库的LSN保持一致，断开后从本地日志的末尾重连补发
+ * 事务状态按主库发来的提交和回滚更新，主库新建的表在提交之后加载
+ * 心跳之前的消息都已应用，备库据此知道自己落后主库多久，超过maxLag时拒绝查询
+ * @author axuan
+ */
+public class Standby {
+
+  private static final long RETRY_MS = 1000; // 断开后第一次重连的等待时间，之后每次加倍
+
+  private static final long MAX_RETRY_MS = 30000; // 重连等待时间的上限
+
+  public static final long MAX_LAG_MS = 5000;
+
+  private String host;
+  private int port;
+  private TransactionManagerImpl tm;
+  private DataManagerImpl dm;
+  private TableManagerImpl tbm;
+  private long maxLag;
+
+  private volatile long caughtUpAt; // 主库的时间，主库在这之前写入的日志和结束的事务都已应用
+  private volatile long offset; // 主库的时间减去备库的时间
+  private long fromXid = 1; // 之前的事务在备库上都已结束
+  private boolean tablesPending; // booter更新后还有表没有提交
+  private volatile boolean closed;
+  private volatile Socket socket;
+  private Thread thread;
+
+  public Standby(String host, int port, TransactionManagerImpl tm, DataManagerImpl dm, TableManagerImpl tbm,
+                 long maxLag) {
+    this.host = host;
+    this.port = port;
+    this.tm = tm;
+    this.dm = dm;
+    this.tbm = tbm;
+    this.maxLag = maxLag;
+  }
+
+  public void start() {
+    thread = new Thread(this::run, "standby");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void run() {
+    long retry = RETRY_MS;
+    while (!closed) {
+      try {
+        Socket s = new Socket(host, port);
+        socket = s;
+        // 连上之后断开的从头开始退避
+        retry = RETRY_MS;
+        try {
+          receive(s);
+        } finally {
+          s.close();
+        }
+      } catch (IOException e) {
+        if (!closed) {
+          System.out.println("Standby disconnected from primary: " + e.getMessage() + ", retry in " + retry + "ms");
+        }
+      } catch (Exception e) {
+        Panic.panic(e);
+      }
+      try {
+        Thread.sleep(retry);
+      } catch (InterruptedException e) {
+        return;
+      }
+      retry = Math.min(retry * 2, MAX_RETRY_MS);
+    }
+  }
+
+  private void receive(Socket s) throws Exception {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+    // 上一次连接的心跳不再代表现在的进度，收到这次连接的第一个心跳之前拒绝查询
+    caughtUpAt = 0;
+    long counter = tm.getXidCounter();
+    while (fromXid <= counter && !tm.isActive(fromXid)) {
+      fromXid++;
+    }
+    long t0 = System.currentTimeMillis();
+    out.writeLong(dm.getLogger().tail());
+    out.writeLong(fromXid);
+    out.writeLong(t0);
+    out.flush();
+    long primaryTime = in.readLong();
+    offset = primaryTime - (t0 + System.currentTimeMillis()) / 2;
+    System.out.println("Standby connected to primary " + host + ":" + port);
+
+    while (!closed) {
+      byte type = in.readByte();
+      switch (type) {
+        case LogShipper.LOG: {
+          long lsn = in.readLong();
+          dm.redo(lsn, readBytes(in));
+          break;
+        }
+        case LogShipper.COMMIT: {
+          long xid = in.readLong();
+          tm.advance(xid);
+          tm.commit(xid);
+          loadTables();
+          break;
+        }
+        case LogShipper.ABORT: {
+          long xid = in.readLong();
+          tm.advance(xid);
+          tm.abort(xid);
+          break;
+        }
+        case LogShipper.BOOTER:
+          tbm.redoBooter(readBytes(in));
+          tablesPending = true;
+          loadTables();
+          break;
+        case LogShipper.HEARTBEAT:
+          caughtUpAt = in.readLong();
+          break;
+        case LogShipper.ERROR:
+          throw new IOException(in.readUTF());
+        default:
+          throw Error.InvalidPkgDataException;
+      }
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] raw = new byte[in.readInt()];
+    in.readFully(raw);
+    return raw;
+  }
+
+  private void loadTables() throws Exception {
+    if (tablesPending) {
+      tablesPending = !tbm.reloadTables();
+    }
+  }
+
+  /**
+   * 查询之前检查备库落后主库的时间
+   * @throws Exception
+   */
+  public void checkLag() throws Exception {
+    if (System.currentTimeMillis() + offset - caughtUpAt > maxLag) {
+      throw Error.StandbyLagException;
+    }
+  }
+
+  public void close() {
+    closed = true;
+    try {
+      if (socket != null) {
+        socket.close();
+      }
+      if (thread != null) {
+        thread.interrupt();
+        thread.join();
+      }
+    } catch (IOException | InterruptedException ignored) {
+    }
+  }
+}
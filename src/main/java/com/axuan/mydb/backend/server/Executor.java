@@ -10,8 +10,10 @@ import com.axuan.mydb.backend.parser.statement.Insert;
 import com.axuan.mydb.backend.parser.statement.Select;
 import com.axuan.mydb.backend.parser.statement.Show;
 import com.axuan.mydb.backend.parser.statement.Update;
+import com.axuan.mydb.backend.replica.Standby;
 import com.axuan.mydb.backend.tbm.BeginRes;
 import com.axuan.mydb.backend.tbm.TableManager;
+import com.axuan.mydb.backend.tm.impl.TransactionManagerImpl;
 import com.axuan.mydb.common.Error;
 
 /**
@@ -21,9 +23,15 @@ import com.axuan.mydb.common.Error;
 public class Executor {
   private long xid;
   TableManager tbm;
+  Standby standby; // 不为null时是备库，只能读取
 
   public Executor(TableManager tbm) {
+    this(tbm, null);
+  }
+
+  public Executor(TableManager tbm, Standby standby) {
     this.tbm = tbm;
+    this.standby = standby;
   }
 
   public void close() {
@@ -36,6 +44,9 @@ public class Executor {
   public byte[] execute(byte[] sql) throws Exception {
     System.out.println("Execute: " + new String(sql));
     Object stat = Parser.Parser(sql);
+    if (standby != null) {
+      return executeStandby(stat);
+    }
     if (Begin.class.isInstance(stat)) {
       if (xid != 0) {
         throw Error.NestedTransactionException;
@@ -62,6 +73,22 @@ public class Executor {
     }
   }
 
+  /**
+   * 备库不开启事务，以超级事务读取，读到的是主库已提交的数据
+   * @param stat
+   * @return
+   * @throws Exception
+   */
+  private byte[] executeStandby(Object stat) throws Exception {
+    if (Select.class.isInstance(stat)) {
+      standby.checkLag();
+      return tbm.read(TransactionManagerImpl.SUPER_XID, (Select)stat);
+    } else if (Show.class.isInstance(stat)) {
+      return tbm.show(TransactionManagerImpl.SUPER_XID);
+    }
+    throw Error.ReadOnlyException;
+  }
+
   private byte[] execute2(Object stat) throws Exception {
     boolean tmpTransaction = false;
     Exception e = null;
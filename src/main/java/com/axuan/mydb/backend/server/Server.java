@@ -1,5 +1,6 @@
 package com.axuan.mydb.backend.server;
 
+import com.axuan.mydb.backend.replica.Standby;
 import com.axuan.mydb.backend.tbm.TableManager;
 import com.axuan.mydb.transport.Encoder;
 import com.axuan.mydb.transport.Package;
@@ -21,10 +22,19 @@ import java.util.concurrent.TimeUnit;
 public class Server {
   private int port;
   TableManager tbm;
+  Standby standby;
 
   public Server(int port, TableManager tbm) {
+    this(port, tbm, null);
+  }
+
+  /**
+   * @param standby 不为null时作为备库，只提供读取
+   */
+  public Server(int port, TableManager tbm, Standby standby) {
     this.port = port;
     this.tbm = tbm;
+    this.standby = standby;
   }
 
   public void start() {
@@ -43,7 +53,7 @@ public class Server {
     try {
       while(true) {
         Socket socket = ss.accept();
-        Runnable worker = new HandleSocket(socket, tbm);
+        Runnable worker = new HandleSocket(socket, tbm, standby);
         tpe.execute(worker);
       }
     } catch (IOException e) {
@@ -62,10 +72,12 @@ public class Server {
 class HandleSocket implements Runnable {
   private Socket socket;
   private TableManager tbm;
+  private Standby standby;
 
-  public HandleSocket(Socket socket, TableManager tbm) {
+  public HandleSocket(Socket socket, TableManager tbm, Standby standby) {
     this.socket = socket;
     this.tbm = tbm;
+    this.standby = standby;
   }
 
   @Override
@@ -85,7 +97,7 @@ class HandleSocket implements Runnable {
         e1.printStackTrace();
       }
     }
-    Executor exe = new Executor(tbm);
+    Executor exe = new Executor(tbm, standby);
     while(true) {
       Package pkg = null;
       try {
@@ -7,6 +7,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.function.Consumer;
 
 /**
  * MYDB使用Booter类和bt文件，来管理MYDB的管理信息，这里只需要记录第一个表的uid
@@ -19,6 +20,7 @@ public class Booter {
 
   String path;
   File file;
+  Consumer<byte[]> listener; // 更新后的内容交给listener，用于发送给备库
 
   public static Booter create(String path) {
     removeBadTmp(path);
@@ -98,6 +100,13 @@ public class Booter {
     if (!file.canRead() || !file.canWrite()) {
       Panic.panic(Error.FileCannotRWException);
     }
+    if (listener != null) {
+      listener.accept(data);
+    }
+  }
+
+  public void setListener(Consumer<byte[]> listener) {
+    this.listener = listener;
   }
 
 
@@ -11,6 +11,7 @@ import com.axuan.mydb.backend.tbm.BeginRes;
 import com.axuan.mydb.backend.tbm.Booter;
 import com.axuan.mydb.backend.tbm.Table;
 import com.axuan.mydb.backend.tbm.TableManager;
+import com.axuan.mydb.backend.tm.impl.TransactionManagerImpl;
 import com.axuan.mydb.backend.utils.Parser;
 import com.axuan.mydb.backend.vm.VersionManager;
 import com.axuan.mydb.common.Error;
@@ -18,6 +19,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -71,11 +73,66 @@ public class TableManagerImpl implements TableManager {
     booter.update(raw);
   }
 
+  /**
+   * 设置booter更新时的监听者，主库据此把新建的表发送给备库
+   * @param listener
+   */
+  public void setBooterListener(Consumer<byte[]> listener) {
+    booter.setListener(listener);
+  }
+
+  /**
+   * 主库：读取当前的booter，补发给新连接的备库
+   * @return
+   */
+  public byte[] loadBooter() {
+    return booter.load();
+  }
+
+  /**
+   * 备库：写入主库发来的booter
+   * @param raw
+   */
+  public void redoBooter(byte[] raw) {
+    booter.update(raw);
+  }
+
+  /**
+   * 备库：从头遍历表的链表，加载主库新建并且已经提交的表
+   * 链表头插，遇到还没有提交的表时停止，之后的表在它之前已经加载
+   * @return 链表上的表是否都已加载
+   * @throws Exception
+   */
+  public boolean reloadTables() throws Exception {
+    lock.lock();
+    try {
+      Map<Long, Table> loaded = new HashMap<>();
+      for (Table tb : tableCache.values()) {
+        loaded.put(tb.uid, tb);
+      }
+      long uid = firstTableUid();
+      while (uid != 0) {
+        Table tb = loaded.get(uid);
+        if (tb == null) {
+          if (vm.read(TransactionManagerImpl.SUPER_XID, uid) == null) {
+            return false;
+          }
+          tb = Table.loadTable(this, uid);
+          tableCache.put(tb.name, tb);
+        }
+        uid = tb.nextUid;
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
   @Override
   public BeginRes begin(Begin begin) {
     BeginRes res = new BeginRes();
     int level = begin.isRepeatAbleRead ? 1 : 0;
-    res.xid = vm.begin(level);
+    res.xid = vm.begin(level, begin.isAsync);
     res.result = "begin".getBytes();
     return res;
   }
@@ -20,12 +20,24 @@ public interface TransactionManager {
   /**开启事务*/
   long begin();
 
-  /**提交事务*/
+  /**提交事务，状态不立即落盘，持久性由提交之前落盘的提交日志保证*/
   void commit(long xid);
 
-  /**丢弃事务(也可以说是回滚)*/
+  /**异步提交事务，只在内存中标记为已提交，提交日志落盘后再调用commit写入XID文件*/
+  void commitAsync(long xid);
+
+  /**丢弃事务(也可以说是回滚)，状态不立即落盘，崩溃后没有提交日志的事务由恢复回滚*/
   void abort(long xid);
 
+  /**把此前的状态变化写入磁盘，检查点删除日志之前调用*/
+  void sync();
+
+  /**崩溃恢复之后调用，把没有提交也没有回滚的事务标记为回滚，它们不会再结束*/
+  void abortUnfinished();
+
+  /**冻结已经全部结束的一段事务，之后XID文件和内存中只保留它们之中回滚的事务，检查点时调用*/
+  void freeze();
+
   boolean isActive(long xid);
 
   boolean isCommitted(long xid);
@@ -68,7 +80,7 @@ public interface TransactionManager {
       Panic.panic(e);
     }
 
-    return new TransactionManagerImpl(raf, fc);
+    return new TransactionManagerImpl(path, raf, fc);
   }
 
 
@@ -89,7 +101,7 @@ public interface TransactionManager {
     } catch (FileNotFoundException e) {
       Panic.panic(e);
     }
-    return new TransactionManagerImpl(raf, fc);
+    return new TransactionManagerImpl(path, raf, fc);
   }
 
 }
@@ -0,0 +1,97 @@
+package com.axuan.mydb.backend.tm.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 内存中的事务状态表，每个事务占2位，16个事务打包在一个int中
+ * 按块分配，扩容时只复制块的目录，已有的块不动，读取不加锁
+ * 状态的写入由TransactionManagerImpl在写入XID文件之后进行，XID文件仍然是持久化的依据
+ *
+ * base之前的事务已冻结，不再逐个记录：除了aborted中的事务都已提交
+ * aborted按区间记录，连续回滚的事务(比如崩溃后没有用到的一批预留XID)只占一个区间
+ * @author axuan
+ */
+class StatusTable {
+
+  private static final int BITS = 2;
+  private static final int PER_INT = Integer.SIZE / BITS;
+  private static final int MASK = (1 << BITS) - 1;
+
+  private static final int CHUNK_SHIFT = 16; // 每块2^16个int，即2^20个事务
+  private static final int CHUNK_INTS = 1 << CHUNK_SHIFT;
+  private static final long CHUNK_XIDS = (long) CHUNK_INTS * PER_INT;
+
+  final long base;
+  final long[] aborted; // base之前回滚的事务，[from, to]两个一组，升序且互不相邻
+
+  private volatile AtomicIntegerArray[] chunks = new AtomicIntegerArray[0];
+
+  StatusTable(long base, long[] aborted) {
+    this.base = base;
+    this.aborted = aborted;
+  }
+
+  /**
+   * 保证xid所在的块已分配，由持有counterLock的线程调用
+   */
+  void ensure(long xid) {
+    int c = (int) ((xid - base) / CHUNK_XIDS);
+    AtomicIntegerArray[] cur = chunks;
+    if (c < cur.length) {
+      return;
+    }
+    AtomicIntegerArray[] next = Arrays.copyOf(cur, c + 1);
+    for (int i = cur.length; i <= c; i++) {
+      next[i] = new AtomicIntegerArray(CHUNK_INTS);
+    }
+    chunks = next;
+  }
+
+  void set(long xid, byte status) {
+    long idx = xid - base;
+    AtomicIntegerArray chunk = chunks[(int) (idx / CHUNK_XIDS)];
+    idx %= CHUNK_XIDS;
+    int i = (int) (idx / PER_INT);
+    int shift = (int) (idx % PER_INT) * BITS;
+    while (true) {
+      int old = chunk.get(i);
+      int v = (old & ~(MASK << shift)) | ((status & MASK) << shift);
+      if (old == v || chunk.compareAndSet(i, old, v)) {
+        return;
+      }
+    }
+  }
+
+  // 二分查找from不大于xid的最后一个区间
+  private boolean isFrozenAborted(long xid) {
+    int lo = 0, hi = aborted.length / 2 - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (aborted[mid * 2] <= xid) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return hi >= 0 && xid <= aborted[hi * 2 + 1];
+  }
+
+  /**
+   * 超出已分配范围的事务视为活跃，与读取XID文件末尾之后得到0一致
+   */
+  byte get(long xid) {
+    if (xid < base) {
+      return isFrozenAborted(xid) ? TransactionManagerImpl.FIELD_TRAN_ABORTED : TransactionManagerImpl.FIELD_TRAN_COMMITTED;
+    }
+    AtomicIntegerArray[] cur = chunks;
+    long idx = xid - base;
+    int c = (int) (idx / CHUNK_XIDS);
+    if (c >= cur.length) {
+      return 0;
+    }
+    idx %= CHUNK_XIDS;
+    int v = cur[c].get((int) (idx / PER_INT));
+    return (byte) ((v >>> ((int) (idx % PER_INT) * BITS)) & MASK);
+  }
+}
@@ -4,15 +4,41 @@ import com.axuan.mydb.backend.tm.TransactionManager;
 import com.axuan.mydb.backend.utils.Panic;
 import com.axuan.mydb.backend.utils.Parser;
 import com.axuan.mydb.common.Error;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 事务管理的实现类
+ * 事务状态在打开时全部读入内存中的StatusTable，查询状态只读内存；
+ * 提交和回滚只写入XID文件不force，持久性由日志中的提交日志保证，崩溃后由Recover重建；
+ * 检查点删除日志之前调用sync把状态落盘
+ *
+ * XID按XID_RESERVE个一批预留：文件先扩展出这批事务的状态(都为活跃)，再把文件头更新为预留的上限，
+ * 批内的begin只在内存中递增计数。崩溃后从上限之后继续分配，预留了但没有用到的事务一直处于活跃状态，
+ * 它们没有写过任何数据，不影响可见性。正常关闭时文件头写回实际的计数并截掉多余的部分
+ *
+ * 冻结：第一个活跃(或异步提交还没有写入文件)的事务之前的事务都已结束，不会再改变状态，
+ * 它们之中只记录回滚的事务，其余都视为已提交，XID文件改写为从这个事务开始，文件和内存都不再随事务总数增长
+ * 回滚的事务按连续的区间记录，相邻的区间合并，崩溃后没有用到的一批预留XID只占一个区间
+ * 冻结后的XID文件：
+ * [Magic][XidCounter][Base][RangeCount][From1][To1][From2][To2]...[Base的状态][Base+1的状态]...
+ * 没有冻结过的XID文件：
+ * [XidCounter][1的状态][2的状态]...
  * @author axuan
  */
 public class TransactionManagerImpl implements TransactionManager {
@@ -20,34 +46,56 @@ public class TransactionManagerImpl implements TransactionManager {
   // XID文件头长度
   public static final int LEN_XID_HEADER_LENGTH = 8;
 
+  // 冻结后的XID文件以Magic开头，没有冻结过的文件以XidCounter开头，不会是负数
+  private static final long FROZEN_MAGIC = -1;
+
   // 每个事务的占用长度
   private static final int XID_FIELD_SIZE = 1;
 
   // 事务的三种状态
-  private static final byte FIELD_TRAN_ACTIVE = 0;
-  private static final byte FIELD_TRAN_COMMITTED = 1;
-  private static final byte FIELD_TRAN_ABORTED = 2;
+  static final byte FIELD_TRAN_ACTIVE = 0;
+  static final byte FIELD_TRAN_COMMITTED = 1;
+  static final byte FIELD_TRAN_ABORTED = 2;
+
+  // 每次预留的XID个数
+  private static final int XID_RESERVE = 1024;
+
+  // 可以冻结的事务达到这个数量时才改写XID文件
+  private static final long FREEZE_MIN = 1 << 16;
 
   // 超级事务,永远为committed状态
   public static final long SUPER_XID = 0;
 
   public static final String XID_SUFFIX = ".xid";
+  public static final String XID_TMP_SUFFIX = ".xid_tmp";
 
+  private String path;
   private RandomAccessFile file;
   private FileChannel fc;
   private long xidCounter;
+  private long reserved; // 文件头中的计数，已预留的最大XID
+  private int counterOffset; // 文件头中计数的位置
+  private long dataStart; // 第一个事务的状态在文件中的位置
   private Lock counterLock;
+  private ReadWriteLock fileLock; // 冻结时替换XID文件，写入状态的线程持有读锁
+  private volatile StatusTable statuses;
+  private Set<Long> asyncPending; // 在内存中已提交、状态还没有写入文件的事务，不能被冻结
 
-  public TransactionManagerImpl(RandomAccessFile file, FileChannel fc) {
+  public TransactionManagerImpl(String path, RandomAccessFile file, FileChannel fc) {
+    this.path = path;
     this.file = file;
     this.fc = fc;
     this.counterLock = new ReentrantLock();
+    this.fileLock = new ReentrantReadWriteLock();
+    this.asyncPending = ConcurrentHashMap.newKeySet();
     checkXIDCounter();
+    loadStatuses();
   }
 
   /**
    * 检查XID文件是否合法
    * 读取XID_FILE_HEADER中的xidCounter,根据它计算文件的理论长度，对比实际长度
+   * 实际长度更长时是预留XID的过程中崩溃，截掉多出的部分
    */
   private void checkXIDCounter() {
     long fileLen = 0;
@@ -60,56 +108,129 @@ public class TransactionManagerImpl implements TransactionManager {
       Panic.panic(Error.BadXidFileException);
     }
 
-    ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
+    long first = readLong(0);
+    long base = 1;
+    long[] aborted = new long[0];
+    if (first == FROZEN_MAGIC) {
+      counterOffset = 8;
+      this.xidCounter = readLong(counterOffset);
+      base = readLong(counterOffset + 8);
+      ByteBuffer buf = ByteBuffer.allocate(4);
+      read(buf, counterOffset + 16);
+      aborted = new long[buf.getInt(0) * 2];
+      buf = ByteBuffer.allocate(aborted.length * 8);
+      read(buf, counterOffset + 20);
+      buf.flip();
+      buf.asLongBuffer().get(aborted);
+      dataStart = counterOffset + 20 + aborted.length * 8L;
+    } else {
+      counterOffset = 0;
+      this.xidCounter = first;
+      dataStart = LEN_XID_HEADER_LENGTH;
+    }
+    this.reserved = xidCounter;
+    this.statuses = new StatusTable(base, aborted);
+    long end = getXidPosition(this.xidCounter + 1);
+    if (end > fileLen) {
+      Panic.panic(Error.BadXidFileException);
+    }
+    if (end < fileLen) {
+      // 预留时文件已扩展但文件头还没有更新就崩溃，多出的部分没有被使用过
+      try {
+        fc.truncate(end);
+      } catch (IOException e) {
+        Panic.panic(e);
+      }
+    }
+  }
+
+  private long readLong(long offset) {
+    ByteBuffer buf = ByteBuffer.allocate(8);
+    read(buf, offset);
+    return Parser.parseLong(buf.array());
+  }
+
+  private void read(ByteBuffer buf, long offset) {
     try {
-      fc.position(0);
-      fc.read(buf);
+      while (buf.hasRemaining()) {
+        int n = fc.read(buf, offset + buf.position());
+        if (n < 0) {
+          Panic.panic(Error.BadXidFileException);
+        }
+      }
     } catch (IOException e) {
       Panic.panic(e);
     }
-    this.xidCounter = Parser.parseLong(buf.array());
-    long end = getXidPosition(this.xidCounter + 1);
-    if (end != fileLen) {
-      Panic.panic(Error.BadXidFileException);
+  }
+
+  // 把XID文件中所有事务的状态读入内存
+  private void loadStatuses() {
+    StatusTable st = statuses;
+    st.ensure(xidCounter);
+    ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+    long xid = st.base;
+    while (xid <= xidCounter) {
+      buf.clear();
+      try {
+        if (fc.read(buf, getXidPosition(xid)) < 0) {
+          Panic.panic(Error.BadXidFileException);
+        }
+      } catch (IOException e) {
+        Panic.panic(e);
+      }
+      buf.flip();
+      while (buf.hasRemaining() && xid <= xidCounter) {
+        st.set(xid, buf.get());
+        xid++;
+      }
     }
   }
 
   // 根据事务xid取得其在xid文件对应的位置
   private long getXidPosition(long xid) {
-    return LEN_XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+    return dataStart + (xid - statuses.base) * XID_FIELD_SIZE;
   }
 
   // 更新xid事务的状态为status
   private void updateXID(long xid, byte status) {
-    long offset = getXidPosition(xid);
-    byte[] tmp = new byte[XID_FIELD_SIZE];
-    tmp[0] = status;
-    ByteBuffer buf = ByteBuffer.wrap(tmp);
-    try {
-      fc.position(offset);
-      fc.write(buf);
-    } catch (IOException e) {
-      Panic.panic(e);
-    }
+    fileLock.readLock().lock();
     try {
-      fc.force(false);
-    } catch (IOException e) {
-      Panic.panic(e);
+      long offset = getXidPosition(xid);
+      byte[] tmp = new byte[XID_FIELD_SIZE];
+      tmp[0] = status;
+      ByteBuffer buf = ByteBuffer.wrap(tmp);
+      try {
+        // 使用带位置的写入，不与并发的读取争用通道的position
+        fc.write(buf, offset);
+      } catch (IOException e) {
+        Panic.panic(e);
+      }
+      statuses.set(xid, status);
+    } finally {
+      fileLock.readLock().unlock();
     }
   }
 
 
-  // 将XID加一，并更新XID Header
-  private void incrXIDCounter() {
-    xidCounter++;
-    ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+  // 预留XID直到limit：先扩展文件并落盘，再更新XID Header，文件长度始终不小于文件头对应的长度
+  private void reserve(long limit) {
+    fileLock.readLock().lock();
     try {
-      fc.position(0);
-      fc.write(buf);
-    } catch (IOException e) {
-      Panic.panic(e);
+      statuses.ensure(limit);
+      ByteBuffer zeros = ByteBuffer.allocate((int) (getXidPosition(limit + 1) - getXidPosition(reserved + 1)));
+      writeAndForce(zeros, getXidPosition(reserved + 1));
+      writeAndForce(ByteBuffer.wrap(Parser.long2Byte(limit)), counterOffset);
+      reserved = limit;
+    } finally {
+      fileLock.readLock().unlock();
     }
+  }
+
+  private void writeAndForce(ByteBuffer buf, long offset) {
     try {
+      while (buf.hasRemaining()) {
+        offset += fc.write(buf, offset);
+      }
       fc.force(false);
     } catch (IOException e) {
       Panic.panic(e);
@@ -121,17 +242,65 @@ public class TransactionManagerImpl implements TransactionManager {
     counterLock.lock();
     try {
       long xid = xidCounter + 1;
-      updateXID(xid, FIELD_TRAN_ACTIVE);
-      incrXIDCounter();
+      if (xid > reserved) {
+        reserve(xid + XID_RESERVE - 1);
+      }
+      xidCounter = xid;
       return xid;
     } finally {
      counterLock.unlock();
     }
   }
 
+  /**
+   * 已分配的最大XID
+   */
+  public long getXidCounter() {
+    counterLock.lock();
+    try {
+      return xidCounter;
+    } finally {
+      counterLock.unlock();
+    }
+  }
+
+  /**
+   * 备库：把XID计数推进到xid，新分配的事务都处于活跃状态，之后由主库的提交和回滚更新
+   * @param xid
+   */
+  public void advance(long xid) {
+    counterLock.lock();
+    try {
+      while (xidCounter < xid) {
+        begin();
+      }
+    } finally {
+      counterLock.unlock();
+    }
+  }
+
   @Override
   public void commit(long xid) {
-    updateXID(xid, FIELD_TRAN_COMMITTED);
+    // 写入文件和移出asyncPending之间不能冻结，否则文件中会一直是活跃状态
+    fileLock.readLock().lock();
+    try {
+      updateXID(xid, FIELD_TRAN_COMMITTED);
+      asyncPending.remove(xid);
+    } finally {
+      fileLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void commitAsync(long xid) {
+    asyncPending.add(xid);
+    // 持有读锁，冻结复制状态时不会丢失这次修改
+    fileLock.readLock().lock();
+    try {
+      statuses.set(xid, FIELD_TRAN_COMMITTED);
+    } finally {
+      fileLock.readLock().unlock();
+    }
   }
 
   @Override
@@ -139,17 +308,136 @@ public class TransactionManagerImpl implements TransactionManager {
     updateXID(xid, FIELD_TRAN_ABORTED);
   }
 
-  // 检测XID事务是否处于status状态
-  private boolean checkXID(long xid, byte status) {
-    long offset = getXidPosition(xid);
-    ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+  /**
+   * 崩溃后文件头中的计数是预留的上限，没有用到的XID也在这里标记为回滚，
+   * 它们是连续的，冻结之后只占一个区间
+   */
+  @Override
+  public void abortUnfinished() {
+    counterLock.lock();
     try {
-      fc.position(offset);
-      fc.read(buf);
+      StatusTable st = statuses;
+      for (long xid = st.base; xid <= xidCounter; xid++) {
+        if (st.get(xid) == FIELD_TRAN_ACTIVE) {
+          updateXID(xid, FIELD_TRAN_ABORTED);
+        }
+      }
+    } finally {
+      counterLock.unlock();
+    }
+  }
+
+  @Override
+  public void freeze() {
+    freeze(FREEZE_MIN);
+  }
+
+  /**
+   * 冻结第一个活跃或异步提交还没有写入文件的事务之前的事务，改写XID文件
+   * 新文件写入临时文件并落盘后再替换原文件，崩溃时原文件和新文件都是完整的
+   * @param min 可以冻结的事务少于min个时不做
+   */
+  public void freeze(long min) {
+    counterLock.lock();
+    fileLock.writeLock().lock();
+    try {
+      StatusTable cur = statuses;
+      long horizon = cur.base;
+      while (horizon <= xidCounter && cur.get(horizon) != FIELD_TRAN_ACTIVE && !asyncPending.contains(horizon)) {
+        horizon++;
+      }
+      if (horizon - cur.base < min || horizon == cur.base) {
+        return;
+      }
+      // 在已有的区间后面追加新冻结的回滚事务，与前一个区间相邻时合并
+      List<Long> ranges = new ArrayList<>();
+      for (long x : cur.aborted) {
+        ranges.add(x);
+      }
+      for (long xid = cur.base; xid < horizon; xid++) {
+        if (cur.get(xid) != FIELD_TRAN_ABORTED) {
+          continue;
+        }
+        int n = ranges.size();
+        if (n > 0 && ranges.get(n - 1) == xid - 1) {
+          ranges.set(n - 1, xid);
+        } else {
+          ranges.add(xid);
+          ranges.add(xid);
+        }
+      }
+      long[] aborted = new long[ranges.size()];
+      for (int i = 0; i < aborted.length; i++) {
+        aborted[i] = ranges.get(i);
+      }
+
+      StatusTable next = new StatusTable(horizon, aborted);
+      next.ensure(reserved);
+      ByteBuffer buf = ByteBuffer.allocate((int) (28 + aborted.length * 8L + (reserved - horizon + 1)));
+      buf.putLong(FROZEN_MAGIC).putLong(reserved).putLong(horizon).putInt(aborted.length / 2);
+      for (long xid : aborted) {
+        buf.putLong(xid);
+      }
+      for (long xid = horizon; xid <= reserved; xid++) {
+        byte status = cur.get(xid);
+        next.set(xid, status);
+        // 异步提交的提交日志可能还没有落盘，文件中仍为活跃，日志落盘后由commit写入
+        buf.put(asyncPending.contains(xid) ? FIELD_TRAN_ACTIVE : status);
+      }
+      buf.flip();
+
+      File tmp = new File(path + XID_TMP_SUFFIX);
+      try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+        raf.setLength(0);
+        FileChannel ch = raf.getChannel();
+        while (buf.hasRemaining()) {
+          ch.write(buf);
+        }
+        ch.force(false);
+      }
+      fc.force(false);
+      Files.move(tmp.toPath(), new File(path + XID_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      // 目录落盘之后替换才不会因崩溃丢失
+      try (FileChannel dir = FileChannel.open(tmp.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+        dir.force(true);
+      }
+      fc.close();
+      file.close();
+      file = new RandomAccessFile(path + XID_SUFFIX, "rw");
+      fc = file.getChannel();
+      counterOffset = 8;
+      dataStart = 28 + aborted.length * 8L;
+      statuses = next;
+    } catch (IOException e) {
+      Panic.panic(e);
+    } finally {
+      fileLock.writeLock().unlock();
+      counterLock.unlock();
+    }
+  }
+
+  /**
+   * 关闭时已经落盘，之后调用不再需要写盘
+   */
+  @Override
+  public void sync() {
+    fileLock.readLock().lock();
+    try {
+      if (!fc.isOpen()) {
+        return;
+      }
+      fc.force(false);
+    } catch (ClosedChannelException ignored) {
     } catch (IOException e) {
       Panic.panic(e);
+    } finally {
+      fileLock.readLock().unlock();
     }
-    return buf.array()[0] == status;
+  }
+
+  // 检测XID事务是否处于status状态
+  private boolean checkXID(long xid, byte status) {
+    return statuses.get(xid) == status;
   }
 
   @Override
@@ -170,13 +458,27 @@ public class TransactionManagerImpl implements TransactionManager {
     return checkXID(xid, FIELD_TRAN_ABORTED);
   }
 
+  /**
+   * 关闭时把文件头写回实际的计数，截掉预留了但没有用到的事务
+   */
   @Override
   public void close() {
+    counterLock.lock();
+    fileLock.writeLock().lock();
     try {
+      if (reserved > xidCounter) {
+        fc.write(ByteBuffer.wrap(Parser.long2Byte(xidCounter)), counterOffset);
+        fc.truncate(getXidPosition(xidCounter + 1));
+        reserved = xidCounter;
+      }
+      fc.force(false);
       fc.close();
       file.close();
-    } catch (Exception e) {
+    } catch (IOException e) {
       Panic.panic(e);
+    } finally {
+      fileLock.writeLock().unlock();
+      counterLock.unlock();
     }
   }
 
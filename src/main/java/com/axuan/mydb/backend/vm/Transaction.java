@@ -15,20 +15,34 @@ public class Transaction {
   public Map<Long, Boolean> snapshot;
   public Exception err;
   public boolean autoAborted;
+  public boolean async; // 异步提交
 
   public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
     Transaction t = new Transaction();
     t.xid = xid;
     t.level = level;
-    if (level != 0) {
-      t.snapshot = new HashMap<>();
-      for (Long x : active.keySet()) {
-        t.snapshot.put(x, true);
-      }
+    if (active != null) {
+      t.takeSnapshot(active);
     }
     return t;
   }
 
+  /**
+   * 可重复读记录当前活跃的事务，比自己大的事务可见性判断时直接排除，不需要记录
+   * 调用者需保证遍历期间没有事务从active中移除，否则快照可能不对应任何一个时刻
+   */
+  public void takeSnapshot(Map<Long, Transaction> active) {
+    if (level == 0) {
+      return;
+    }
+    snapshot = new HashMap<>();
+    for (Long x : active.keySet()) {
+      if (x < xid) {
+        snapshot.put(x, true);
+      }
+    }
+  }
+
   public boolean isInSnapshot(long xid) {
     if (xid == TransactionManagerImpl.SUPER_XID) {  // 如果是超级事务，直接返回false。因为超级事务默认committed
       return false;
@@ -11,8 +11,8 @@ import com.axuan.mydb.backend.vm.VersionManager;
 import com.axuan.mydb.backend.vm.Visibility;
 import com.axuan.mydb.backend.common.AbstractCache;
 import com.axuan.mydb.common.Error;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -24,8 +24,8 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
   public TransactionManager tm;
   public DataManager dm;
-  public Map<Long, Transaction> activeTransaction;  // 记录此时active的事务
-  public Lock lock;
+  public Map<Long, Transaction> activeTransaction;  // 记录此时active的事务，各会话查找自己的事务不加锁
+  public Lock lock; // 分配xid、登记和取快照一起完成，事务结束时也在锁内移除，快照中的活跃事务是同一时刻的
   public LockTable lt;
 
 
@@ -33,7 +33,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     super(0);
     this.tm = tm;
     this.dm = dm;
-    this.activeTransaction = new HashMap<>();
+    this.activeTransaction = new ConcurrentHashMap<>();
     activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
     this.lock = new ReentrantLock();
     this.lt = new LockTable();
@@ -41,9 +41,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
   @Override
   public byte[] read(long xid, long uid) throws Exception {
-    lock.lock();
     Transaction t = activeTransaction.get(xid); // 读的时候先通过xid获取该事务
-    lock.unlock();
     if (t.err != null) {
       throw t.err;
     }
@@ -61,9 +59,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
   @Override
   public long insert(long xid, byte[] data) throws Exception {
-    lock.lock();
     Transaction t = activeTransaction.get(xid);
-    lock.unlock();
     if (t.err != null) {
       throw t.err;
     }
@@ -73,9 +69,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
   @Override
   public boolean delete(long xid, long uid) throws Exception {
-    lock.lock();
     Transaction t = activeTransaction.get(xid); // 获得其事务
-    lock.unlock();
 
     if (t.err != null) {
       throw t.err;
@@ -119,22 +113,28 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
   @Override
   public long begin(int level) {
+    return begin(level, false);
+  }
+
+  @Override
+  public long begin(int level, boolean async) {
+    Transaction t;
     lock.lock();
     try {
       long xid = tm.begin();
-      Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+      t = Transaction.newTransaction(xid, level, null);
+      t.async = async;
       activeTransaction.put(xid, t);
-      return xid;
+      t.takeSnapshot(activeTransaction);
     } finally {
       lock.unlock();
     }
+    return t.xid;
   }
 
   @Override
   public void commit(long xid) throws Exception {
-    lock.lock();
     Transaction t = activeTransaction.get(xid);  // 通过xid获取这个事务
-    lock.unlock();
 
     try {
       if (t.err != null) {
@@ -146,12 +146,21 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
       Panic.panic(n);
     }
 
-    lock.lock();
-    activeTransaction.remove(xid); // 并从active事务中移除掉
-    lock.unlock();
-
     lt.remove(xid);  // 既然这个事务已经提交，则去掉在locktable中的关联
-    tm.commit(xid); // 通过tm提交这个事务
+    if (t.async) {
+      // 异步提交不等待提交日志落盘，崩溃时可能丢失，但不会早于它之前提交的事务
+      if (dm.logCommitAsync(xid)) {
+        tm.commitAsync(xid);
+      } else {
+        // 没有写过数据的事务没有提交日志，直接写入XID文件，不会一直等待落盘
+        tm.commit(xid);
+      }
+    } else {
+      dm.logCommit(xid); // 提交日志落盘之后才能标记为已提交，并发提交的事务共享一次写盘
+      tm.commit(xid); // 通过tm提交这个事务，状态由提交日志保证，不再单独落盘
+    }
+    // 标记为已提交之后才从active事务中移除，此前开始的事务的快照中一定有它
+    unregister(xid);
   }
 
   @Override
@@ -163,16 +172,27 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
   // 手动指的是调用abort()方法
   // 而自动，则是在事务被检测出出现死锁时，会自动撤销回滚事务，或者出现版本跳跃时，也会自动回滚
   private void internAbort(long xid, boolean autoAborted) {
-    lock.lock();
     Transaction t = activeTransaction.get(xid);
+    if (!t.autoAborted) {
+      lt.remove(xid);  // 手动的话，则需要解除locktable的一些关系
+      tm.abort(xid); // 并要通过tm进行abort
+    }
+    // 与提交相同，状态写入之后才从active事务中移除
     if (!autoAborted) {
-      activeTransaction.remove(xid);
+      unregister(xid);
     }
-    lock.unlock();
+  }
 
-    if (t.autoAborted) return;
-    lt.remove(xid);  // 手动的话，则需要解除locktable的一些关系
-    tm.abort(xid); // 并要通过tm进行abort
+  /**
+   * 与取快照互斥，一次快照中不会出现先结束的事务仍活跃、后结束的事务已结束
+   */
+  private void unregister(long xid) {
+    lock.lock();
+    try {
+      activeTransaction.remove(xid);
+    } finally {
+      lock.unlock();
+    }
   }
 
   public void releaseEntry(Entry entry) {
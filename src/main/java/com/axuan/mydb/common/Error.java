@@ -11,11 +11,15 @@ public class Error {
   public static final Exception FileExistsException = new RuntimeException("File already exists");
   public static final Exception FileNotExistsException = new RuntimeException("File does not exists!");
   public static final Exception FileCannotRWException = new RuntimeException("File cannot read or write");
+  public static final Exception InvalidPolicyException = new RuntimeException("Invalid replacement policy!");
 
 
   // dm
   public static final Exception MemTooSmallException = new RuntimeException("Memory too small");
   public static final Exception DataToolLargeException = new RuntimeException("Data too large!");
+  public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+  public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
+  public static final Exception StandbyDivergedException = new RuntimeException("Standby diverged from primary!");
 
 
   // tm
@@ -45,6 +49,8 @@ public class Error {
   // server
   public static Exception NestedTransactionException = new RuntimeException("Nested transaction not supported!");
   public static Exception NoTransactionException = new RuntimeException("Not in transaction!");
+  public static Exception ReadOnlyException = new RuntimeException("Standby is read only!");
+  public static Exception StandbyLagException = new RuntimeException("Standby lags too far behind primary!");
 
   // launcher
   public static Exception InvalidMemException = new RuntimeException("Invalid memory!");
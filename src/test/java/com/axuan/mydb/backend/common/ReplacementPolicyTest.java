@@ -0,0 +1,58 @@
+package com.axuan.mydb.backend.common;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * @author axuan
+ * @date 2026/10/18
+ **/
+public class ReplacementPolicyTest {
+
+  @Test
+  public void testClockSkipsReferenced() {
+    ReplacementPolicy policy = ReplacementPolicy.newPolicy(ReplacementPolicy.CLOCK, 4);
+    for (long i = 1; i <= 4; i++) {
+      policy.record(i);
+    }
+    policy.access(1);
+    policy.access(2);
+    assert policy.victim(key -> true) == 3;
+    assert policy.victim(key -> true) == 4;
+  }
+
+  @Test
+  public void testPinnedNotEvicted() {
+    for (String name : new String[]{ReplacementPolicy.CLOCK, ReplacementPolicy.TWO_QUEUE}) {
+      ReplacementPolicy policy = ReplacementPolicy.newPolicy(name, 4);
+      Set<Long> pinned = new HashSet<>();
+      for (long i = 1; i <= 4; i++) {
+        policy.record(i);
+        pinned.add(i);
+      }
+      assert policy.victim(key -> !pinned.contains(key)) == -1;
+      pinned.remove(2L);
+      assert policy.victim(key -> !pinned.contains(key)) == 2;
+    }
+  }
+
+  @Test
+  public void testTwoQueueScanResistant() {
+    ReplacementPolicy policy = ReplacementPolicy.newPolicy(ReplacementPolicy.TWO_QUEUE, 8);
+    // 1被驱逐后很快再次加载，进入Am
+    policy.record(1);
+    assert policy.victim(key -> true) == 1;
+    policy.record(1);
+    // 缓存满后，一次大范围扫描只会在A1in中轮转，不会挤掉热页面
+    int resident = 1;
+    for (long i = 100; i < 200; i++) {
+      policy.record(i);
+      resident++;
+      if (resident > 8) {
+        assert policy.victim(key -> true) != 1;
+        resident--;
+      }
+    }
+  }
+}
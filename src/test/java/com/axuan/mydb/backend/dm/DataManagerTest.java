@@ -1,7 +1,10 @@
 package com.axuan.mydb.backend.dm;
 
 import com.axuan.mydb.backend.dm.dataItem.DataItem;
+import com.axuan.mydb.backend.dm.logger.LogFiles;
+import com.axuan.mydb.backend.dm.page.PageX;
 import com.axuan.mydb.backend.dm.pageCache.PageCache;
+import com.axuan.mydb.backend.dm.pageCache.PageCacheOptions;
 import com.axuan.mydb.backend.tm.TransactionManager;
 import com.axuan.mydb.backend.tm.impl.TransactionManagerImpl;
 import com.axuan.mydb.backend.utils.Panic;
@@ -9,6 +12,7 @@ import com.axuan.mydb.backend.utils.RandomUtil;
 import com.axuan.mydb.backend.common.SubArray;
 import com.axuan.mydb.backend.tm.MockTransactionManager;
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -51,7 +55,7 @@ public class DataManagerTest {
     mdm.close();
 
     new File("/tmp/TESTDMSingle.db").delete();
-    new File("/tmp/TESTDMSingle.log").delete();
+    LogFiles.delete("/tmp/TESTDMSingle");
 
   }
 
@@ -143,7 +147,7 @@ public class DataManagerTest {
     mdm.close();
 
     new File("/tmp/TestDMMulti.db").delete();
-    new File("/tmp/TestDNMulti.log").delete();
+    LogFiles.delete("/tmp/TestDMMulti");
   }
 
   @Test
@@ -169,7 +173,214 @@ public class DataManagerTest {
     mdm.close();
 
     new File("/tmp/TestRecoverySimple.db").delete();
-    new File("/tmp/TestRecoverySimple.log").delete();
+    LogFiles.delete("/tmp/TestRecoverySimple");
     new File("/tmp/TestRecoverySimple.xid").delete();
   }
+
+  @Test
+  public void testCompressed() throws InterruptedException {
+    TransactionManagerImpl tm0 = TransactionManager.create("/tmp/TestDMCompressed");
+    PageCacheOptions options = PageCacheOptions.newOptions(PageCache.PAGE_SIZE * 10);
+    options.compress = true;
+    DataManager dm0 = DataManager.create("/tmp/TestDMCompressed", options, tm0);
+    MockDataManager mdm = MockDataManager.newMockDataManager();
+    dm0.close();
+
+    initUids();
+    for (int i = 0; i < 5; i++) {
+      // 是否压缩由数据库文件决定
+      dm0 = DataManager.open("/tmp/TestDMCompressed", PageCache.PAGE_SIZE * 10, tm0);
+      CountDownLatch cdl = new CountDownLatch(1);
+      final DataManager dm = dm0;
+      Runnable r = () -> worker(dm, mdm, 1000, 50, cdl);
+      new Thread(r).run();
+      cdl.await();
+      dm0.close();
+    }
+    mdm.close();
+
+    assert new File("/tmp/TestDMCompressed.db").delete();
+    assert new File("/tmp/TestDMCompressed.pmap").delete();
+    LogFiles.delete("/tmp/TestDMCompressed");
+    new File("/tmp/TestDMCompressed.xid").delete();
+  }
+
+  @Test
+  public void testRecoveryDelta() throws Exception {
+    String path = "/tmp/TestRecoveryDelta";
+    TransactionManagerImpl tm = TransactionManager.create(path);
+    DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm);
+    List<Long> uids = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      byte[] data = new byte[200];
+      Arrays.fill(data, (byte)i);
+      uids.add(dm.insert(TransactionManagerImpl.SUPER_XID, data));
+    }
+    dm.close();
+
+    dm = DataManager.open(path, PageCache.PAGE_SIZE * 10, tm);
+    long committed = tm.begin();
+    long active = tm.begin();
+    for (int i = 0; i < uids.size(); i++) {
+      long xid = i % 2 == 0 ? committed : active;
+      DataItem di = dm.read(uids.get(i));
+      di.before();
+      SubArray s = di.data();
+      s.raw[s.start + (i % 2)] = (byte)0xFF;
+      // 只修改了一个字节，日志远小于完整的前后镜像
+      assert Recover.updateLog(xid, di).length < 40;
+      di.after(xid);
+      di.release();
+    }
+    List<Long> aborted = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      aborted.add(dm.insert(active, new byte[200]));
+    }
+    tm.commit(committed);
+    // 模拟崩溃：未提交的修改也写回了磁盘，但第一页的校验没有更新为正常关闭
+    ((DataManagerImpl) dm).pc.close();
+
+    dm = DataManager.open(path, PageCache.PAGE_SIZE * 10, tm);
+    for (int i = 0; i < uids.size(); i++) {
+      DataItem di = dm.read(uids.get(i));
+      SubArray s = di.data();
+      if (i % 2 == 0) {
+        assert s.raw[s.start] == (byte)0xFF;
+      } else {
+        assert s.raw[s.start + 1] == (byte)i;
+      }
+      assert s.raw[s.end - 1] == (byte)i;
+      di.release();
+    }
+    // 未提交事务插入的数据被回滚
+    for (long uid : aborted) {
+      assert dm.read(uid) == null;
+    }
+    dm.close();
+    tm.close();
+
+    assert new File(path + ".db").delete();
+    LogFiles.delete(path);
+    new File(path + ".xid").delete();
+  }
+
+  @Test
+  public void testCommitLog() throws Exception {
+    String path = "/tmp/TestCommitLog";
+    TransactionManagerImpl tm = TransactionManager.create(path);
+    DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm);
+    long committed = tm.begin();
+    long active = tm.begin();
+    long u1 = dm.insert(committed, new byte[]{1});
+    long u2 = dm.insert(active, new byte[]{2});
+    dm.logCommit(committed);
+    tm.commit(committed);
+    ((DataManagerImpl) dm).pc.close();
+    tm.close();
+
+    // XID文件中的提交状态没有落盘
+    try (RandomAccessFile raf = new RandomAccessFile(path + ".xid", "rw")) {
+      raf.seek(TransactionManagerImpl.LEN_XID_HEADER_LENGTH + committed - 1);
+      raf.write(0);
+    }
+
+    tm = TransactionManager.open(path);
+    assert tm.isActive(committed);
+    dm = DataManager.open(path, PageCache.PAGE_SIZE * 10, tm);
+    assert tm.isCommitted(committed);
+    assert tm.isAborted(active);
+    DataItem di = dm.read(u1);
+    assert di.data().raw[di.data().start] == 1;
+    di.release();
+    assert dm.read(u2) == null;
+    dm.close();
+    tm.close();
+
+    assert new File(path + ".db").delete();
+    LogFiles.delete(path);
+    new File(path + ".xid").delete();
+  }
+
+  @Test
+  public void testAsyncCommit() throws Exception {
+    String path = "/tmp/TestAsyncCommit";
+    TransactionManagerImpl tm = TransactionManager.create(path);
+    DataManager dm = DataManager.create(path, PageCacheOptions.newOptions(PageCache.PAGE_SIZE * 10), tm, 100);
+    long xid = tm.begin();
+    dm.insert(xid, new byte[]{1});
+    dm.logCommitAsync(xid);
+    tm.commitAsync(xid);
+    assert tm.isCommitted(xid);
+    // 内存中已提交，XID文件中的状态在提交日志落盘之后才写入
+    assert readXidStatus(path, xid) == 0;
+    long deadline = System.currentTimeMillis() + 5000;
+    while (readXidStatus(path, xid) == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    assert readXidStatus(path, xid) == 1;
+    dm.close();
+    tm.close();
+
+    assert new File(path + ".db").delete();
+    LogFiles.delete(path);
+    new File(path + ".xid").delete();
+  }
+
+  private static int readXidStatus(String path, long xid) throws Exception {
+    try (RandomAccessFile raf = new RandomAccessFile(path + ".xid", "r")) {
+      raf.seek(TransactionManagerImpl.LEN_XID_HEADER_LENGTH + xid - 1);
+      return raf.read();
+    }
+  }
+
+  @Test
+  public void testFuzzyCheckpoint() throws Exception {
+    String path = "/tmp/TestFuzzyCheckpoint";
+    TransactionManagerImpl tm = TransactionManager.create(path);
+    DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, tm);
+    ((DataManagerImpl) dm).checkpointInterval = 1 << 12;
+    long committed = tm.begin();
+    long active = tm.begin();
+    List<Long> uids = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      byte[] data = new byte[200];
+      Arrays.fill(data, (byte)i);
+      uids.add(dm.insert(i % 2 == 0 ? committed : active, data));
+    }
+    // 两个事务都跨越了多个检查点
+    for (int i = 0; i < uids.size(); i++) {
+      long xid = i % 2 == 0 ? committed : active;
+      DataItem di = dm.read(uids.get(i));
+      di.before();
+      SubArray s = di.data();
+      s.raw[s.start] = (byte)0xFF;
+      di.after(xid);
+      assert PageX.getPageLsn(di.page()) > 0;
+      di.release();
+    }
+    tm.commit(committed);
+    // 等后台的检查点做完再模拟崩溃
+    ((DataManagerImpl) dm).checkpointer.close();
+    ((DataManagerImpl) dm).pc.close();
+
+    dm = DataManager.open(path, PageCache.PAGE_SIZE * 10, tm);
+    for (int i = 0; i < uids.size(); i++) {
+      DataItem di = dm.read(uids.get(i));
+      if (i % 2 == 0) {
+        SubArray s = di.data();
+        assert s.raw[s.start] == (byte)0xFF;
+        assert s.raw[s.end - 1] == (byte)i;
+        di.release();
+      } else {
+        // 活跃事务的日志在检查点之前，仍然被保留并回滚
+        assert di == null;
+      }
+    }
+    dm.close();
+    tm.close();
+
+    assert new File(path + ".db").delete();
+    LogFiles.delete(path);
+    new File(path + ".xid").delete();
+  }
 }
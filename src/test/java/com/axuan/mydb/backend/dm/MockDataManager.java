@@ -3,6 +3,7 @@ package com.axuan.mydb.backend.dm;
 import com.axuan.mydb.backend.dm.dataItem.DataItem;
 import com.axuan.mydb.backend.common.SubArray;
 import com.axuan.mydb.backend.dm.dataItem.MockDataItem;
+import com.axuan.mydb.backend.dm.pageCache.PageCache;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
@@ -55,6 +56,26 @@ public class MockDataManager implements DataManager {
     }
   }
 
+  @Override
+  public int getPageSize() {
+    return PageCache.PAGE_SIZE;
+  }
+
+  @Override
+  public void prefetch(long uid) {
+
+  }
+
+  @Override
+  public void logCommit(long xid) {
+
+  }
+
+  @Override
+  public boolean logCommitAsync(long xid) {
+    return false;
+  }
+
   @Override
   public void close() {
 
@@ -0,0 +1,21 @@
+package com.axuan.mydb.backend.dm.logger;
+
+import com.axuan.mydb.backend.dm.logger.impl.LoggerImpl;
+
+/**
+ * 测试结束时删除日志的所有段，残留的段会在下次打开同名日志时被当作日志的一部分
+ * @author axuan
+ */
+public class LogFiles {
+
+  /**
+   * @return 所有段(包括第0段)都删除成功
+   */
+  public static boolean delete(String path) {
+    boolean ok = true;
+    for (long seq : LoggerImpl.listSegments(path)) {
+      ok &= LoggerImpl.segmentFile(path, seq).delete();
+    }
+    return ok;
+  }
+}
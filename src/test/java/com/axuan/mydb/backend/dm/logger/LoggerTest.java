@@ -1,6 +1,14 @@
 package com.axuan.mydb.backend.dm.logger;
 
 import java.io.File;
+import com.axuan.mydb.backend.dm.logger.impl.LoggerImpl;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import org.junit.Test;
 
 /**
@@ -46,7 +54,338 @@ public class LoggerTest {
 
     lg.close();
 
-    assert new File("/tmp/logger_test.log").delete();
+    assert LogFiles.delete("/tmp/logger_test");
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    Logger lg = Logger.create("/tmp/logger_group_test");
+    int threads = 20, logs = 100;
+    CountDownLatch cdl = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      int id = i;
+      new Thread(() -> {
+        for (int j = 0; j < logs; j++) {
+          lg.log((id + "-" + j).getBytes());
+          if (j % 10 == 9) {
+            lg.flush();
+          }
+        }
+        cdl.countDown();
+      }).start();
+    }
+    cdl.await();
+    lg.flush();
+
+    // 模拟XCheckSum没来得及落盘就崩溃，日志按逐条校验的结果打开
+    try (RandomAccessFile raf = new RandomAccessFile("/tmp/logger_group_test.log", "rw")) {
+      raf.writeInt(0x12345678);
+    }
+    lg.close();
+    try (RandomAccessFile raf = new RandomAccessFile("/tmp/logger_group_test.log", "rw")) {
+      raf.writeInt(0x12345678);
+    }
+
+    Logger lg2 = Logger.open("/tmp/logger_group_test");
+    lg2.rewind();
+    Set<String> all = new HashSet<>();
+    byte[] log;
+    while ((log = lg2.next()) != null) {
+      all.add(new String(log));
+    }
+    assert all.size() == threads * logs;
+    for (int i = 0; i < threads; i++) {
+      assert all.contains(i + "-" + (logs - 1));
+    }
+    lg2.close();
+
+    assert LogFiles.delete("/tmp/logger_group_test");
+  }
+
+  @Test
+  public void testBufferFull() throws Exception {
+    String path = "/tmp/logger_full_test";
+    Logger lg = Logger.create(path);
+    int threads = 8, logs = 40;
+    CountDownLatch cdl = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      int id = i;
+      new Thread(() -> {
+        // 每条日志64KB，总量远超缓冲区，写入者等待缓冲区空出空间
+        for (int j = 0; j < logs; j++) {
+          byte[] data = new byte[1 << 16];
+          Arrays.fill(data, (byte)(id * logs + j));
+          lg.log(data);
+        }
+        cdl.countDown();
+      }).start();
+    }
+    cdl.await();
+    lg.close();
+
+    Logger lg2 = Logger.open(path);
+    lg2.rewind();
+    int count = 0;
+    byte[] log;
+    while ((log = lg2.next()) != null) {
+      assert log.length == 1 << 16 && log[0] == log[log.length - 1];
+      count++;
+    }
+    assert count == threads * logs;
+    lg2.close();
+
+    assert LogFiles.delete(path);
+  }
+
+  @Test
+  public void testSegments() {
+    String path = "/tmp/logger_segment_test";
+    Logger lg = Logger.create(path, 1 << 10);
+    for (int i = 0; i < 500; i++) {
+      lg.log(("log-" + i).getBytes());
+    }
+    lg.close();
+    assert LoggerImpl.listSegments(path).size() > 1;
+
+    // 按段的顺序读出所有日志
+    lg = Logger.open(path, 1 << 10);
+    lg.rewind();
+    for (int i = 0; i < 500; i++) {
+      byte[] log = lg.next();
+      assert log != null;
+      assert ("log-" + i).equals(new String(log));
+    }
+    assert lg.next() == null;
+
+    // 检查点之后只剩下第0段和新的段
+    lg.checkpoint("checkpoint".getBytes(), Long.MAX_VALUE);
+    lg.log("after".getBytes());
+    lg.close();
+    List<Long> segments = LoggerImpl.listSegments(path);
+    assert segments.size() == 2;
+    assert LoggerImpl.segmentFile(path, 0).length() == 16;
+
+    lg = Logger.open(path, 1 << 10);
+    lg.rewind();
+    assert "checkpoint".equals(new String(lg.next()));
+    assert "after".equals(new String(lg.next()));
+    assert lg.next() == null;
+    lg.close();
+
+    assert LogFiles.delete(path);
+  }
+
+  @Test
+  public void testReaderKeepsSegments() {
+    String path = "/tmp/logger_reader_test";
+    Logger lg = Logger.create(path, 1 << 10);
+    long[] lsns = new long[500];
+    for (int i = 0; i < 500; i++) {
+      lsns[i] = lg.log(("log-" + i).getBytes());
+    }
+    lg.flush();
+
+    LogReader reader = lg.openReader(lsns[249]);
+    int i = 0;
+    while (i < 250) {
+      byte[] log = reader.next();
+      assert log != null;
+      if (reader.readLsn() > lsns[249]) {
+        break;
+      }
+      i++;
+    }
+    // 读取器正在读取的段和之后的段在检查点之后仍然保留，检查点不影响读取器的位置
+    lg.checkpoint("checkpoint".getBytes(), Long.MAX_VALUE);
+    for (i = 251; i < 500; i++) {
+      byte[] log = reader.next();
+      assert ("log-" + i).equals(new String(log));
+      assert reader.readLsn() == lsns[i];
+    }
+    assert "checkpoint".equals(new String(reader.next()));
+    assert reader.next() == null;
+    lg.log("after".getBytes());
+    lg.flush();
+    assert "after".equals(new String(reader.next()));
+    reader.close();
+
+    // 读取器关闭后，下一次检查点删除之前保留的段
+    assert LoggerImpl.listSegments(path).size() > 2;
+    lg.checkpoint("checkpoint2".getBytes(), Long.MAX_VALUE);
+    assert LoggerImpl.listSegments(path).size() == 2;
+    lg.close();
+
+    assert LogFiles.delete(path);
+  }
+
+  @Test
+  public void testLsn() throws Exception {
+    String path = "/tmp/logger_lsn_test";
+    Logger lg0 = Logger.create(path, 1 << 16);
+    int threads = 16, logs = 200;
+    CountDownLatch cdl = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      int id = i;
+      new Thread(() -> {
+        try {
+          long last = 0;
+          for (int j = 0; j < logs; j++) {
+            // 日志总量远超缓冲区，缓冲区会被反复复用
+            byte[] data = new byte[4096];
+            Arrays.fill(data, (byte)id);
+            System.arraycopy((id + "-" + j + "-").getBytes(), 0, data, 0, (id + "-" + j + "-").length());
+            long lsn = lg0.log(data);
+            assert lsn > last;
+            last = lsn;
+            if (j % 50 == 49) {
+              lg0.flush(lsn);
+            }
+          }
+        } finally {
+          cdl.countDown();
+        }
+      }).start();
+    }
+    cdl.await();
+    lg0.close();
+
+    Logger lg = Logger.open(path, 1 << 16);
+    lg.rewind();
+    Set<String> all = new HashSet<>();
+    byte[] log;
+    while ((log = lg.next()) != null) {
+      assert log.length == 4096;
+      String s = new String(log, 0, 16);
+      String key = s.substring(0, s.indexOf('-', s.indexOf('-') + 1));
+      assert log[4095] == (byte)Integer.parseInt(key.substring(0, key.indexOf('-')));
+      all.add(key);
+    }
+    assert all.size() == threads * logs;
+    lg.close();
+
+    assert LogFiles.delete(path);
+  }
+
+  @Test
+  public void testPersistentLsn() {
+    String path = "/tmp/logger_persistent_lsn_test";
+    Logger lg = Logger.create(path, 1 << 10);
+    List<Long> lsns = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      lsns.add(lg.log(("log-" + i).getBytes()));
+    }
+    lg.close();
+
+    // 重新打开后LSN接着增长，读出的LSN与写入时一致
+    lg = Logger.open(path, 1 << 10);
+    assert lg.tail() == lsns.get(199);
+    lg.rewind();
+    for (long lsn : lsns) {
+      assert lg.next() != null;
+      assert lg.readLsn() == lsn;
+    }
+    assert lg.log("more".getBytes()) > lsns.get(199);
+
+    // 只删除末尾不超过keepLsn的段
+    lg.checkpoint("checkpoint".getBytes(), lsns.get(100));
+    assert LoggerImpl.segmentFile(path, 0).length() == 16;
+    lg.close();
+
+    lg = Logger.open(path, 1 << 10);
+    lg.rewind();
+    String log = new String(lg.next());
+    int first = Integer.parseInt(log.substring("log-".length()));
+    assert first <= 101;
+    assert lg.readLsn() == lsns.get(first);
+    for (int i = first + 1; i < 200; i++) {
+      assert ("log-" + i).equals(new String(lg.next()));
+      assert lg.readLsn() == lsns.get(i);
+    }
+    assert "more".equals(new String(lg.next()));
+    assert "checkpoint".equals(new String(lg.next()));
+    assert lg.next() == null;
+    lg.close();
+
+    assert LogFiles.delete(path);
+  }
+
+  @Test
+  public void testBufferedRead() throws Exception {
+    String path = "/tmp/logger_buffered_read_test";
+    Logger lg = Logger.create(path);
+    List<byte[]> logs = new ArrayList<>();
+    // 日志跨越读缓冲区的边界，最后一条比读缓冲区剩余的空间大
+    for (int i = 0; i < 400; i++) {
+      byte[] data = new byte[(i * 7919) % 20000 + 1];
+      Arrays.fill(data, (byte)i);
+      logs.add(data);
+      lg.log(data);
+    }
+    byte[] large = new byte[(1 << 20) - 100];
+    Arrays.fill(large, (byte)7);
+    logs.add(large);
+    lg.log(large);
+    lg.close();
+
+    // 写入一半的日志作为坏的尾部
+    try (RandomAccessFile raf = new RandomAccessFile(path + ".log", "rw")) {
+      raf.seek(raf.length());
+      raf.writeInt(1000);
+      raf.writeInt(0);
+      raf.write(new byte[10]);
+    }
+
+    lg = Logger.open(path);
+    lg.rewind();
+    for (byte[] data : logs) {
+      assert Arrays.equals(data, lg.next());
+    }
+    assert lg.next() == null;
+    lg.close();
+
+    assert LogFiles.delete(path);
+  }
+
+  @Test
+  public void testOldFormat() throws Exception {
+    String path = "/tmp/logger_old_format_test";
+    LogFiles.delete(path);
+    // 多项式校验值的段，XCheckSum故意写错，模拟没来得及落盘
+    try (RandomAccessFile raf = new RandomAccessFile(path + ".log", "rw")) {
+      raf.writeInt(0);
+      raf.writeInt(0x8D4C4F47);
+      raf.writeLong(0);
+      for (int i = 0; i < 100; i++) {
+        byte[] data = ("old-" + i).getBytes();
+        raf.writeInt(data.length);
+        raf.writeInt(polyCheckSum(data));
+        raf.write(data);
+      }
+    }
+
+    Logger lg = Logger.open(path);
+    lg.log("new".getBytes());
+    lg.close();
+    assert LoggerImpl.listSegments(path).size() == 2;
+
+    lg = Logger.open(path);
+    lg.rewind();
+    for (int i = 0; i < 100; i++) {
+      assert ("old-" + i).equals(new String(lg.next()));
+    }
+    assert "new".equals(new String(lg.next()));
+    assert lg.next() == null;
+    lg.close();
+
+    assert LogFiles.delete(path);
+  }
+
+  private static int polyCheckSum(byte[] data) {
+    int xCheck = 0;
+    for (byte b : data) {
+      xCheck = xCheck * 13331 + b;
+    }
+    return xCheck;
   }
 
 }
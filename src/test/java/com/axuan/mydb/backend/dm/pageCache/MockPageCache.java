@@ -1,5 +1,6 @@
 package com.axuan.mydb.backend.dm.pageCache;
 
+import com.axuan.mydb.backend.dm.logger.Logger;
 import com.axuan.mydb.backend.dm.page.Page;
 import com.axuan.mydb.backend.dm.page.MockPage;
 import java.util.HashMap;
@@ -65,4 +66,34 @@ public class MockPageCache implements PageCache {
   public void flushPage(Page pg) {
 
   }
+
+  @Override
+  public void markDirty(Page pg) {
+
+  }
+
+  @Override
+  public void markDirty(Page pg, long recLsn) {
+
+  }
+
+  @Override
+  public Map<Integer, Long> dirtyPageTable() {
+    return new HashMap<>();
+  }
+
+  @Override
+  public void prefetch(int pgNo) {
+
+  }
+
+  @Override
+  public int getPageSize() {
+    return PAGE_SIZE;
+  }
+
+  @Override
+  public void setLogger(Logger logger) {
+
+  }
 }
@@ -46,6 +46,166 @@ public class PageCacheTest {
     assert new File("/tmp/pCacher_simple_test0.db").delete();
   }
 
+  @Test
+  public void testExtentAllocation() throws Exception {
+    File f = new File("/tmp/pCacher_extent_test.db");
+    PageCacheImpl pc = PageCache.create("/tmp/pCacher_extent_test", PageCache.PAGE_SIZE * 50);
+    for (int i = 0; i < 10; i++) {
+      pc.newPage(new byte[PageCache.PAGE_SIZE]);
+    }
+    // 文件按区段扩展，而不是每页扩展一次
+    assert f.length() >= 1 << 20;
+    pc.truncateByPgNo(5);
+    assert f.length() == 5L * PageCache.PAGE_SIZE;
+    assert pc.newPage(new byte[PageCache.PAGE_SIZE]) == 6;
+    pc.close();
+
+    // 关闭时截掉未使用的部分
+    assert f.length() == 6L * PageCache.PAGE_SIZE;
+    pc = PageCache.open("/tmp/pCacher_extent_test", PageCache.PAGE_SIZE * 50);
+    assert pc.getPageNumber() == 6;
+    pc.close();
+
+    assert f.delete();
+  }
+
+  @Test
+  public void testCompressedPageCache() throws Exception {
+    PageCacheOptions options = PageCacheOptions.newOptions(PageCache.PAGE_SIZE * 20);
+    options.compress = true;
+    PageCacheImpl pc = PageCache.create("/tmp/pCacher_compress_test", options);
+    for (int i = 0; i < 100; i++) {
+      byte[] tmp = new byte[PageCache.PAGE_SIZE];
+      Arrays.fill(tmp, (byte)i);
+      int pgNo = pc.newPage(tmp);
+      assert pgNo == i + 1;
+    }
+    for (int i = 2; i <= 100; i++) {
+      Page pg = pc.getPage(i);
+      assert pg.getData()[PageCache.PAGE_SIZE - 1] == (byte)(i - 1);
+      pg.getData()[0] = (byte)(i + 1);
+      pg.setDirty(true);
+      pg.release();
+    }
+    pc.close();
+    // 重复的数据压缩后远小于页面大小
+    assert new File("/tmp/pCacher_compress_test.db").length() < 25L * PageCache.PAGE_SIZE;
+
+    pc = PageCache.open("/tmp/pCacher_compress_test", PageCache.PAGE_SIZE * 20);
+    assert pc.getPageNumber() == 100;
+    for (int i = 1; i <= 100; i++) {
+      Page pg = pc.getPage(i);
+      assert pg.getData()[0] == (byte)(i == 1 ? 0 : i + 1);
+      assert pg.getData()[1] == (byte)(i - 1);
+      // 写入随机数据，压缩不了的页面按原样存放
+      if (i % 2 == 0) {
+        System.arraycopy(RandomUtil.randomBytes(PageCache.PAGE_SIZE), 0, pg.getData(), 0, PageCache.PAGE_SIZE);
+        pg.getData()[1] = (byte)(i - 1);
+        pg.setDirty(true);
+      }
+      pg.release();
+    }
+    pc.close();
+
+    pc = PageCache.open("/tmp/pCacher_compress_test", PageCache.PAGE_SIZE * 20);
+    for (int i = 1; i <= 100; i++) {
+      Page pg = pc.getPage(i);
+      assert pg.getData()[1] == (byte)(i - 1);
+      pg.release();
+    }
+    pc.close();
+
+    assert new File("/tmp/pCacher_compress_test.db").delete();
+    assert new File("/tmp/pCacher_compress_test.pmap").delete();
+  }
+
+  @Test
+  public void testMappedPageCache() throws Exception {
+    PageCacheOptions options = PageCacheOptions.newOptions(PageCache.PAGE_SIZE * 50);
+    options.mmap = true;
+    PageCacheImpl pc = PageCache.create("/tmp/pCacher_mmap_test", options);
+    for (int i = 0; i < 100; i++) {
+      byte[] tmp = new byte[PageCache.PAGE_SIZE];
+      tmp[0] = (byte)i;
+      int pgNo = pc.newPage(tmp);
+      Page pg = pc.getPage(pgNo);
+      pg.getData()[1] = (byte)i;
+      pg.setDirty(true);
+      pg.release();
+    }
+    pc.close();
+
+    // 两种模式的文件格式一致
+    pc = PageCache.open("/tmp/pCacher_mmap_test", PageCache.PAGE_SIZE * 50);
+    for (int i = 1; i <= 100; i++) {
+      Page pg = pc.getPage(i);
+      assert pg.getData()[0] == (byte)i - 1;
+      assert pg.getData()[1] == (byte)i - 1;
+      pg.release();
+    }
+    pc.close();
+
+    pc = PageCache.open("/tmp/pCacher_mmap_test", options);
+    for (int i = 1; i <= 100; i++) {
+      Page pg = pc.getPage(i);
+      assert pg.getData()[1] == (byte)i - 1;
+      pg.release();
+    }
+    pc.close();
+
+    assert new File("/tmp/pCacher_mmap_test.db").delete();
+  }
+
+  @Test
+  public void testOffHeapPageCache() throws Exception {
+    PageCacheOptions options = PageCacheOptions.newOptions(PageCache.PAGE_SIZE * 10);
+    options.offHeap = PageCache.PAGE_SIZE * 200;
+    PageCacheImpl pc = PageCache.create("/tmp/pCacher_offheap_test", options);
+    for (int i = 0; i < 100; i++) {
+      byte[] tmp = new byte[PageCache.PAGE_SIZE];
+      tmp[0] = (byte)i;
+      int pgNo = pc.newPage(tmp);
+      Page pg = pc.getPage(pgNo);
+      pg.getData()[1] = (byte)i;
+      pg.setDirty(true);
+      pg.release();
+    }
+    // 堆内只容纳10页，其余被驱逐的页面在堆外
+    assert pc.offHeapPages() >= 90;
+    for (int i = 1; i <= 100; i++) {
+      Page pg = pc.getPage(i);
+      assert pg.getData()[0] == (byte)i - 1;
+      assert pg.getData()[1] == (byte)i - 1;
+      pg.getData()[2] = (byte)i;
+      pg.setDirty(true);
+      pg.release();
+    }
+    for (int i = 1; i <= 100; i++) {
+      Page pg = pc.getPage(i);
+      assert pg.getData()[2] == (byte)i;
+      pg.release();
+    }
+
+    // 截断之后的页面不能再从堆外取回
+    pc.truncateByPgNo(50);
+    assert pc.offHeapPages() <= 50;
+    int pgNo = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+    Page pg = pc.getPage(pgNo);
+    assert pgNo == 51 && pg.getData()[0] == 0;
+    pg.release();
+    pc.close();
+
+    pc = PageCache.open("/tmp/pCacher_offheap_test", PageCache.PAGE_SIZE * 50);
+    for (int i = 1; i <= 50; i++) {
+      pg = pc.getPage(i);
+      assert pg.getData()[2] == (byte)i;
+      pg.release();
+    }
+    pc.close();
+
+    assert new File("/tmp/pCacher_offheap_test.db").delete();
+  }
+
 
 
   private PageCache pc1;
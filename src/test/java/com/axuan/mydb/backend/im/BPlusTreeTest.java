@@ -1,6 +1,9 @@
 package com.axuan.mydb.backend.im;
 
 import com.axuan.mydb.backend.dm.DataManager;
+import com.axuan.mydb.backend.dm.logger.LogFiles;
+import com.axuan.mydb.backend.dm.pageCache.PageCache;
+import com.axuan.mydb.backend.dm.pageCache.PageCacheOptions;
 import com.axuan.mydb.backend.dm.pageCache.impl.PageCacheImpl;
 import com.axuan.mydb.backend.tm.MockTransactionManager;
 import java.io.File;
@@ -33,6 +36,42 @@ public class BPlusTreeTest {
     }
 
     assert new File("/tmp/TestTreeSingle.db").delete();
-    assert new File("/tmp/TestTreeSingle.log").delete();
+    assert LogFiles.delete("/tmp/TestTreeSingle");
+  }
+
+  @Test
+  public void testTreePageSize() throws Exception {
+    for (int pageSize : new int[]{PageCache.MIN_PAGE_SIZE, PageCache.MAX_PAGE_SIZE}) {
+      MockTransactionManager tm = new MockTransactionManager();
+      PageCacheOptions options = PageCacheOptions.newOptions(pageSize * 20);
+      options.pageSize = pageSize;
+      DataManager dm = DataManager.create("/tmp/TestTreePageSize", options, tm);
+      assert dm.getPageSize() == pageSize;
+
+      long root = BPlusTree.create(dm);
+      BPlusTree tree = BPlusTree.load(root, dm);
+      int lim = 5000;
+      for (int i = lim - 1; i >= 0; i--) {
+        tree.insert(i, i);
+      }
+      tree.close();
+      dm.close();
+
+      // 页面大小从数据库文件中读出，与打开时的默认值无关
+      dm = DataManager.open("/tmp/TestTreePageSize", PageCache.MAX_PAGE_SIZE * 20, tm);
+      assert dm.getPageSize() == pageSize;
+      tree = BPlusTree.load(root, dm);
+      for (int i = 0; i < lim; i++) {
+        List<Long> uids = tree.search(i);
+        assert uids.size() == 1;
+        assert uids.get(0) == i;
+      }
+      assert tree.searchRange(100, 199).size() == 100;
+      tree.close();
+      dm.close();
+
+      assert new File("/tmp/TestTreePageSize.db").delete();
+      assert LogFiles.delete("/tmp/TestTreePageSize");
+    }
   }
 }
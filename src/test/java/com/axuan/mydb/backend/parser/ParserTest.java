@@ -47,6 +47,17 @@ public class ParserTest {
     res = Parser.Parser(stat.getBytes());
     begin = (Begin) res;
     assert begin.isRepeatAbleRead;
+    assert !begin.isAsync;
+
+    stat = "begin async";
+    res = Parser.Parser(stat.getBytes());
+    begin = (Begin) res;
+    assert !begin.isRepeatAbleRead && begin.isAsync;
+
+    stat = "begin isolation level repeatable read async";
+    res = Parser.Parser(stat.getBytes());
+    begin = (Begin) res;
+    assert begin.isRepeatAbleRead && begin.isAsync;
   }
 
   @Test
@@ -0,0 +1,179 @@
+package com.axuan.mydb.backend.replica;
+
+import com.axuan.mydb.backend.Launcher;
+import com.axuan.mydb.backend.dm.DataManager;
+import com.axuan.mydb.backend.dm.DataManagerImpl;
+import com.axuan.mydb.backend.dm.logger.LogFiles;
+import com.axuan.mydb.backend.dm.logger.impl.LoggerImpl;
+import com.axuan.mydb.backend.dm.pageCache.impl.PageCacheImpl;
+import com.axuan.mydb.backend.server.Executor;
+import com.axuan.mydb.backend.tbm.Booter;
+import com.axuan.mydb.backend.tbm.TableManager;
+import com.axuan.mydb.backend.tbm.impl.TableManagerImpl;
+import com.axuan.mydb.backend.tm.TransactionManager;
+import com.axuan.mydb.backend.tm.impl.TransactionManagerImpl;
+import com.axuan.mydb.backend.vm.VersionManager;
+import com.axuan.mydb.backend.vm.impl.VersionManagerImpl;
+import com.axuan.mydb.client.Client;
+import com.axuan.mydb.transport.Encoder;
+import com.axuan.mydb.transport.Packager;
+import com.axuan.mydb.transport.Transporter;
+import java.io.File;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+/**
+ * 主库在本进程中运行，备库在另一个进程中运行，检查备库最终与主库一致
+ * @author axuan
+ */
+public class StandbyTest {
+
+  private static final String PRIMARY = "/tmp/TestStandbyPrimary";
+  private static final String STANDBY = "/tmp/TestStandbyStandby";
+  private static final int SHIP_PORT = 19998;
+  private static final int STANDBY_PORT = 19999;
+  private static final long MEM = (1 << 20) * 16;
+
+  @Test
+  public void testStandbyConverges() throws Exception {
+    // 建库并建一张表，正常关闭后拷贝给备库
+    TransactionManagerImpl tm0 = TransactionManager.create(PRIMARY);
+    DataManager dm0 = DataManager.create(PRIMARY, MEM, tm0);
+    TableManager tbm0 = TableManager.create(PRIMARY, new VersionManagerImpl(tm0, dm0), dm0);
+    new Executor(tbm0).execute("create table t1 id int32, name string (index id)".getBytes());
+    dm0.close();
+    tm0.close();
+    for (String suffix : Arrays.asList(PageCacheImpl.DB_SUFFIX, TransactionManagerImpl.XID_SUFFIX,
+        Booter.BOOTER_SUFFIX)) {
+      Files.copy(new File(PRIMARY + suffix).toPath(), new File(STANDBY + suffix).toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+    for (long seq : LoggerImpl.listSegments(PRIMARY)) {
+      Files.copy(LoggerImpl.segmentFile(PRIMARY, seq).toPath(), LoggerImpl.segmentFile(STANDBY, seq).toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // 以发送日志的方式打开主库
+    TransactionManagerImpl tm = TransactionManager.open(PRIMARY);
+    DataManager dm = DataManager.open(PRIMARY, MEM, tm);
+    LogShipper shipper = new LogShipper(SHIP_PORT, tm, ((DataManagerImpl)dm).getLogger());
+    VersionManager vm = new VersionManagerImpl(shipper.wrap(tm), dm);
+    TableManagerImpl tbm = (TableManagerImpl)TableManager.open(PRIMARY, vm, dm);
+    shipper.setTableManager(tbm);
+    shipper.start();
+
+    // 主库写入一部分数据之后备库才启动，这部分日志从主库的日志文件补发
+    Executor exe = new Executor(tbm);
+    for (int i = 0; i < 100; i++) {
+      exe.execute(("insert into t1 values " + i + " before" + i).getBytes());
+    }
+    exe.execute("create table t2 id int32 (index id)".getBytes());
+    for (int i = 0; i < 50; i++) {
+      exe.execute(("insert into t2 values " + i).getBytes());
+    }
+
+    Process standby = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+        "-cp", System.getProperty("java.class.path"), Launcher.class.getName(),
+        "-standby", STANDBY, "-primary", "127.0.0.1:" + SHIP_PORT, "-port", String.valueOf(STANDBY_PORT),
+        "-mem", "16MB")
+        .redirectErrorStream(true)
+        .redirectOutput(new File(STANDBY + ".out"))
+        .start();
+    try {
+      assert waitConverged(exe, "select * from t2");
+
+      // 备库追上之后的日志、事务状态和新建的表通过队列发送
+      int threads = 4;
+      CountDownLatch cdl = new CountDownLatch(threads);
+      for (int i = 0; i < threads; i++) {
+        int id = i;
+        new Thread(() -> {
+          try {
+            Executor e = new Executor(tbm);
+            for (int j = 0; j < 200; j++) {
+              e.execute(("insert into t1 values " + (1000 + id * 1000 + j) + " t" + id).getBytes());
+            }
+            e.execute("begin".getBytes());
+            e.execute(("insert into t1 values " + (9000 + id) + " aborted").getBytes());
+            e.execute("abort".getBytes());
+          } catch (Exception ex) {
+            ex.printStackTrace();
+          } finally {
+            cdl.countDown();
+          }
+        }).start();
+      }
+      cdl.await();
+      exe.execute("update t1 set name = updated where id < 50".getBytes());
+      exe.execute("delete from t1 where id > 1100".getBytes());
+      exe.execute("create table t3 id int32 (index id)".getBytes());
+      for (int i = 0; i < 50; i++) {
+        exe.execute(("insert into t3 values " + i).getBytes());
+      }
+
+      assert waitConverged(exe, "select * from t1");
+      assert waitConverged(exe, "select * from t3");
+
+      Client client = connect();
+      try {
+        client.execute("insert into t1 values 1 readonly".getBytes());
+        assert false;
+      } catch (Exception e) {
+        assert e.getMessage().contains("read only");
+      }
+      client.close();
+    } finally {
+      standby.destroy();
+      standby.waitFor();
+      shipper.close();
+      dm.close();
+      tm.close();
+    }
+
+    for (String path : Arrays.asList(PRIMARY, STANDBY)) {
+      new File(path + PageCacheImpl.DB_SUFFIX).delete();
+      new File(path + TransactionManagerImpl.XID_SUFFIX).delete();
+      new File(path + Booter.BOOTER_SUFFIX).delete();
+      LogFiles.delete(path);
+    }
+    new File(STANDBY + ".out").delete();
+  }
+
+  private boolean waitConverged(Executor primary, String select) throws Exception {
+    List<String> expected = sortedLines(primary.execute(select.getBytes()));
+    long deadline = System.currentTimeMillis() + 60000;
+    while (System.currentTimeMillis() < deadline) {
+      try {
+        Client client = connect();
+        try {
+          if (expected.equals(sortedLines(client.execute(select.getBytes())))) {
+            return true;
+          }
+        } finally {
+          client.close();
+        }
+      } catch (Exception e) {
+        // 备库还没有启动、表还没有加载或落后太多
+      }
+      Thread.sleep(200);
+    }
+    return false;
+  }
+
+  private static Client connect() throws Exception {
+    Socket socket = new Socket("127.0.0.1", STANDBY_PORT);
+    return new Client(new Packager(new Transporter(socket), new Encoder()));
+  }
+
+  private static List<String> sortedLines(byte[] res) {
+    List<String> lines = new ArrayList<>(Arrays.asList(new String(res).split("\n")));
+    lines.sort(null);
+    return lines;
+  }
+}
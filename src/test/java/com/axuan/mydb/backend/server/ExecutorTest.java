@@ -1,7 +1,7 @@
 package com.axuan.mydb.backend.server;
 
-
 import com.axuan.mydb.backend.dm.DataManager;
+import com.axuan.mydb.backend.dm.logger.LogFiles;
 import com.axuan.mydb.backend.tbm.TableManager;
 import com.axuan.mydb.backend.tm.TransactionManager;
 import com.axuan.mydb.backend.vm.VersionManager;
@@ -44,7 +44,7 @@ public class ExecutorTest {
     testInsert(exe, 1000, 1);
     new File(path + ".db").delete();
     new File(path + ".bt").delete();
-    new File(path + ".log").delete();
+    LogFiles.delete(path);
     new File(path + ".xid").delete();
   }
 
@@ -77,7 +77,7 @@ public class ExecutorTest {
     testMultiInsert(10000, 4);
     new File(path + ".db").delete();
     new File(path + ".bt").delete();
-    new File(path + ".log").delete();
+    LogFiles.delete(path);
     new File(path + ".xid").delete();
   }
 }
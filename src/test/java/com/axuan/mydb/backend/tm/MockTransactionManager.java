@@ -16,11 +16,31 @@ public class MockTransactionManager implements TransactionManager {
 
   }
 
+  @Override
+  public void commitAsync(long xid) {
+
+  }
+
   @Override
   public void abort(long xid) {
 
   }
 
+  @Override
+  public void sync() {
+
+  }
+
+  @Override
+  public void abortUnfinished() {
+
+  }
+
+  @Override
+  public void freeze() {
+
+  }
+
   @Override
   public boolean isActive(long xid) {
     return false;
@@ -1,7 +1,11 @@
 package com.axuan.mydb.backend.tm;
 
+import com.axuan.mydb.backend.tm.impl.TransactionManagerImpl;
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.SecureRandom;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
@@ -42,6 +46,169 @@ public class TransactionManagerTest {
     assert new File("/tmp/tm_test.xid").delete();
   }
 
+  @Test
+  public void testReopen() {
+    tm = TransactionManager.create("/tmp/tm_test_reopen");
+    Map<Long, Integer> status = new HashMap<>();
+    for (int i = 0; i < 300; i++) {
+      long xid = tm.begin();
+      int s = random.nextInt(3);
+      if (s == 1) {
+        tm.commit(xid);
+      } else if (s == 2) {
+        tm.abort(xid);
+      }
+      status.put(xid, s);
+    }
+    tm.close();
+
+    tm = TransactionManager.open("/tmp/tm_test_reopen");
+    for (Map.Entry<Long, Integer> e : status.entrySet()) {
+      long xid = e.getKey();
+      assert tm.isActive(xid) == (e.getValue() == 0);
+      assert tm.isCommitted(xid) == (e.getValue() == 1);
+      assert tm.isAborted(xid) == (e.getValue() == 2);
+    }
+    assert tm.isCommitted(TransactionManagerImpl.SUPER_XID);
+    long xid = tm.begin();
+    assert xid == 301 && tm.isActive(xid);
+    tm.close();
+    assert new File("/tmp/tm_test_reopen.xid").delete();
+  }
+
+  @Test
+  public void testCrash() throws Exception {
+    tm = TransactionManager.create("/tmp/tm_test_crash");
+    long x1 = tm.begin(), x2 = tm.begin(), x3 = tm.begin();
+    tm.commit(x1);
+    tm.abort(x2);
+    // 不关闭直接拷贝文件，相当于崩溃
+    Files.copy(new File("/tmp/tm_test_crash.xid").toPath(), new File("/tmp/tm_test_crash2.xid").toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    tm.close();
+
+    TransactionManager tm2 = TransactionManager.open("/tmp/tm_test_crash2");
+    assert tm2.isCommitted(x1) && tm2.isAborted(x2) && tm2.isActive(x3);
+    long x4 = tm2.begin();
+    assert x4 > x3 && tm2.isActive(x4);
+    tm2.commit(x4);
+    tm2.close();
+
+    tm2 = TransactionManager.open("/tmp/tm_test_crash2");
+    assert tm2.isCommitted(x4);
+    assert tm2.begin() == x4 + 1;
+    tm2.close();
+    assert new File("/tmp/tm_test_crash.xid").delete();
+    assert new File("/tmp/tm_test_crash2.xid").delete();
+  }
+
+  @Test
+  public void testFreeze() {
+    new File("/tmp/tm_test_freeze.xid").delete();
+    TransactionManagerImpl tm = TransactionManager.create("/tmp/tm_test_freeze");
+    Map<Long, Byte> statuses = new HashMap<>();
+    for (int i = 0; i < 5000; i++) {
+      long xid = tm.begin();
+      byte status = (byte) (i % 100 == 0 ? 2 : 1);
+      if (status == 1) {
+        tm.commit(xid);
+      } else {
+        tm.abort(xid);
+      }
+      statuses.put(xid, status);
+    }
+    long active = tm.begin();
+    long after = tm.begin();
+    tm.commit(after);
+    long before = new File("/tmp/tm_test_freeze.xid").length();
+    tm.freeze(0);
+    assert new File("/tmp/tm_test_freeze.xid").length() < before;
+    checkStatuses(tm, statuses);
+    assert tm.isActive(active);
+    assert tm.isCommitted(after);
+
+    // 冻结之后的状态照常写入，重新打开后仍然正确
+    tm.abort(active);
+    tm.close();
+    tm = TransactionManager.open("/tmp/tm_test_freeze");
+    checkStatuses(tm, statuses);
+    assert tm.isAborted(active);
+    assert tm.isCommitted(after);
+    assert tm.begin() == after + 1;
+
+    // 再次冻结时保留之前回滚的事务
+    tm.freeze(0);
+    tm.close();
+    tm = TransactionManager.open("/tmp/tm_test_freeze");
+    checkStatuses(tm, statuses);
+    assert tm.isAborted(active);
+    tm.close();
+    assert new File("/tmp/tm_test_freeze.xid").delete();
+  }
+
+  @Test
+  public void testFreezeAsyncCommit() throws Exception {
+    TransactionManagerImpl tm = TransactionManager.create("/tmp/tm_test_freeze_async");
+    long x1 = tm.begin(), x2 = tm.begin(), x3 = tm.begin();
+    tm.commit(x1);
+    tm.commitAsync(x2);
+    tm.commit(x3);
+    tm.freeze(0);
+    assert tm.isCommitted(x2);
+    // 提交日志落盘之前崩溃，XID文件中不能是已提交
+    Files.copy(new File("/tmp/tm_test_freeze_async.xid").toPath(),
+        new File("/tmp/tm_test_freeze_async2.xid").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    tm.close();
+
+    TransactionManager tm2 = TransactionManager.open("/tmp/tm_test_freeze_async2");
+    assert tm2.isCommitted(x1) && tm2.isActive(x2) && tm2.isCommitted(x3);
+    tm2.abortUnfinished();
+    assert tm2.isAborted(x2);
+    tm2.close();
+    assert new File("/tmp/tm_test_freeze_async.xid").delete();
+    assert new File("/tmp/tm_test_freeze_async2.xid").delete();
+  }
+
+  @Test
+  public void testFreezeAfterCrashes() throws Exception {
+    TransactionManagerImpl tm = TransactionManager.create("/tmp/tm_test_freeze_crash");
+    long last = 0;
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 10; j++) {
+        last = tm.begin();
+        tm.commit(last);
+      }
+      // 不关闭直接重新打开，相当于崩溃，预留了但没有用到的XID在恢复后回滚
+      tm.sync();
+      Files.copy(new File("/tmp/tm_test_freeze_crash.xid").toPath(),
+          new File("/tmp/tm_test_freeze_crash2.xid").toPath(), StandardCopyOption.REPLACE_EXISTING);
+      tm.close();
+      Files.move(new File("/tmp/tm_test_freeze_crash2.xid").toPath(),
+          new File("/tmp/tm_test_freeze_crash.xid").toPath(), StandardCopyOption.REPLACE_EXISTING);
+      tm = TransactionManager.open("/tmp/tm_test_freeze_crash");
+      tm.abortUnfinished();
+      tm.freeze(0);
+      assert tm.isCommitted(last) && tm.isAborted(last + 1);
+    }
+    // 每次崩溃只多一个区间，不是整批预留的XID
+    assert new File("/tmp/tm_test_freeze_crash.xid").length() < 28 + 5 * 16 + 8;
+    tm.close();
+    tm = TransactionManager.open("/tmp/tm_test_freeze_crash");
+    assert tm.isCommitted(last) && tm.isAborted(last + 1) && tm.isCommitted(1);
+    tm.close();
+    assert new File("/tmp/tm_test_freeze_crash.xid").delete();
+  }
+
+  private static void checkStatuses(TransactionManager tm, Map<Long, Byte> statuses) {
+    for (Map.Entry<Long, Byte> e : statuses.entrySet()) {
+      if (e.getValue() == 1) {
+        assert tm.isCommitted(e.getKey());
+      } else {
+        assert tm.isAborted(e.getKey());
+      }
+    }
+  }
+
   private void worker() {
     boolean inTrans = false;
     long transXID = 0;